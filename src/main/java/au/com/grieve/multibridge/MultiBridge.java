@@ -1,10 +1,14 @@
 package au.com.grieve.multibridge;
 
 import au.com.grieve.multibridge.commands.MultiBridgeCommand;
+import au.com.grieve.multibridge.managers.CacheManager;
 import au.com.grieve.multibridge.managers.GlobalManager;
 import au.com.grieve.multibridge.managers.InstanceManager;
+import au.com.grieve.multibridge.managers.LogManager;
+import au.com.grieve.multibridge.managers.PoolManager;
 import au.com.grieve.multibridge.managers.TemplateManager;
 import au.com.grieve.multibridge.plugins.Vanilla.VanillaBuilder;
+import au.com.grieve.multibridge.util.ConfigStore;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -19,6 +23,10 @@ public class MultiBridge extends Plugin {
   private TemplateManager templateManager;
   private InstanceManager instanceManager;
   private GlobalManager globalManager;
+  private PoolManager poolManager;
+  private LogManager logManager;
+  private ConfigStore configStore;
+  private CacheManager cacheManager;
 
   @Override
   public void onEnable() {
@@ -30,6 +38,9 @@ public class MultiBridge extends Plugin {
     }
 
     // Load Managers
+    configStore = new ConfigStore(config.getLong("save-delay", 1000));
+    logManager = new LogManager(this);
+    cacheManager = new CacheManager(this);
     globalManager = new GlobalManager(this);
     templateManager = new TemplateManager(this);
     instanceManager = new InstanceManager(this);
@@ -39,12 +50,26 @@ public class MultiBridge extends Plugin {
 
     // Register Plugins
     instanceManager.registerBuilder(new VanillaBuilder(this));
+
+    // Warm Spares
+    poolManager = new PoolManager(this);
   }
 
   @Override
   public void onDisable() {
+    // Stop starting spares
+    poolManager.shutdown();
+
     // Close Instances
-    instanceManager.stopAll();
+    instanceManager.shutdown(config.getInt("shutdown.timeout", 60));
+
+    // Stop watching Templates and trimming the cache
+    templateManager.shutdown();
+    cacheManager.shutdown();
+
+    // Flush Logs and Configs
+    logManager.shutdown();
+    configStore.shutdown();
   }
 
   private void loadConfig() throws IOException {
@@ -82,6 +107,26 @@ public class MultiBridge extends Plugin {
     return globalManager;
   }
 
+  /** Return the Pool Manager */
+  public PoolManager getPoolManager() {
+    return poolManager;
+  }
+
+  /** Return the Log Manager */
+  public LogManager getLogManager() {
+    return logManager;
+  }
+
+  /** Return the Cache Manager */
+  public CacheManager getCacheManager() {
+    return cacheManager;
+  }
+
+  /** Return the Config Store */
+  public ConfigStore getConfigStore() {
+    return configStore;
+  }
+
   /** Return the Config */
   public Configuration getConfig() {
     return config;
@@ -1,8 +1,12 @@
 package au.com.grieve.multibridge.commands;
 
 import au.com.grieve.multibridge.MultiBridge;
+import au.com.grieve.multibridge.managers.CacheManager;
+import au.com.grieve.multibridge.managers.InstanceManager;
+import au.com.grieve.multibridge.objects.Build;
 import au.com.grieve.multibridge.objects.Instance;
 import au.com.grieve.multibridge.objects.Template;
+import au.com.grieve.multibridge.util.ArtifactStore;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.BaseComponent;
@@ -19,6 +23,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 public class MultiBridgeCommand extends Command implements TabExecutor {
   private final MultiBridge plugin;
@@ -82,6 +87,12 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
               .append(" global")
               .color(ChatColor.YELLOW)
               .create());
+      sender.sendMessage(
+          new ComponentBuilder("/mb")
+              .color(ChatColor.RED)
+              .append(" cache")
+              .color(ChatColor.YELLOW)
+              .create());
       sender.sendMessage(
           new ComponentBuilder("/mb")
               .color(ChatColor.RED)
@@ -111,6 +122,9 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
       case "global":
         subcommandGlobal(sender, arguments.shift());
         break;
+      case "cache":
+        subcommandCache(sender, arguments.shift());
+        break;
       case "reload":
         reload(sender, arguments.shift());
         break;
@@ -193,6 +207,41 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
     }
   }
 
+  private void subcommandCache(CommandSender sender, Arguments arguments) {
+    if (arguments.args.size() == 0 || arguments.args.get(0).equalsIgnoreCase("help")) {
+      sender.sendMessage(
+          new ComponentBuilder("--- [ Cache Help ] ---").color(ChatColor.AQUA).create());
+      sender.sendMessage(
+          new ComponentBuilder("Manage the build cache.").color(ChatColor.DARK_AQUA).create());
+      sender.sendMessage(
+          new ComponentBuilder("/mb cache")
+              .color(ChatColor.RED)
+              .append(" info")
+              .color(ChatColor.YELLOW)
+              .create());
+      sender.sendMessage(
+          new ComponentBuilder("/mb cache")
+              .color(ChatColor.RED)
+              .append(" trim")
+              .color(ChatColor.YELLOW)
+              .create());
+      return;
+    }
+
+    switch (arguments.args.get(0).toLowerCase()) {
+      case "info":
+        cacheInfo(sender, arguments.shift());
+        return;
+      case "trim":
+        cacheTrim(sender, arguments.shift());
+        return;
+      default:
+        sender.sendMessage(
+            new ComponentBuilder("Unknown Command").color(ChatColor.DARK_RED).create());
+        break;
+    }
+  }
+
   private void subcommandTemplate(CommandSender sender, Arguments arguments) {
     if (arguments.args.size() == 0 || arguments.args.get(0).equalsIgnoreCase("help")) {
       sender.sendMessage(
@@ -288,6 +337,12 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
               .append(" cmd")
               .color(ChatColor.YELLOW)
               .create());
+      sender.sendMessage(
+          new ComponentBuilder("/mb instance")
+              .color(ChatColor.RED)
+              .append(" cancel")
+              .color(ChatColor.YELLOW)
+              .create());
       //            sender.sendMessage(new ComponentBuilder("/mb
       // instance").color(ChatColor.RED).append(" send").color(ChatColor.YELLOW).create());
       return;
@@ -321,6 +376,9 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
       case "cmd":
         instanceCmd(sender, arguments.shift());
         break;
+      case "cancel":
+        instanceCancel(sender, arguments.shift());
+        break;
       default:
         sender.sendMessage(
             new ComponentBuilder("Unknown Command").color(ChatColor.DARK_RED).create());
@@ -722,7 +780,9 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
               .color(ChatColor.AQUA)
               .create());
       sender.sendMessage(
-          new ComponentBuilder("Download a template zip file").color(ChatColor.DARK_AQUA).create());
+          new ComponentBuilder("Download a template zip, tar.gz or tar.zst file")
+              .color(ChatColor.DARK_AQUA)
+              .create());
       sender.sendMessage(
           new ComponentBuilder("/mb template download")
               .color(ChatColor.RED)
@@ -846,24 +906,26 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
     }
 
     sender.sendMessage(new ComponentBuilder("--- Instances ---").color(ChatColor.AQUA).create());
-    Map<String, Instance> instances = plugin.getInstanceManager().getInstances();
-    if (instances.size() <= (page - 1) * 10) {
+    // Listed without loading dormant instances
+    InstanceManager instanceManager = plugin.getInstanceManager();
+    Set<String> names = instanceManager.getInstanceNames();
+    if (names.size() <= (page - 1) * 10) {
       sender.sendMessage(new ComponentBuilder("No instances found").color(ChatColor.RED).create());
       return;
     }
 
-    instances.values().stream()
+    names.stream()
         .skip(10 * (page - 1))
         .limit(10)
         .forEach(
-            s ->
+            name ->
                 sender.sendMessage(
                     new ComponentBuilder(" - [")
                         .color(ChatColor.DARK_GRAY)
-                        .append(instanceStateToMessage(s.getState()))
+                        .append(instanceStateToMessage(instanceManager.getState(name)))
                         .append("]")
                         .color(ChatColor.DARK_GRAY)
-                        .append(" " + s.getName())
+                        .append(" " + name)
                         .color(ChatColor.DARK_AQUA)
                         .create()));
   }
@@ -898,29 +960,53 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
     final String instanceName = arguments.args.get(0);
     final String templateName = arguments.args.get(1);
 
-    // Async It
-    plugin
-        .getProxy()
-        .getScheduler()
-        .runAsync(
-            plugin,
-            () -> {
-              // Create a new Instance
-              Instance instance;
-              try {
-                instance = plugin.getInstanceManager().create(templateName, instanceName);
-              } catch (IOException e) {
+    // Builds in the background, relaying progress
+    Build build;
+    try {
+      build =
+          plugin
+              .getInstanceManager()
+              .createAsync(
+                  templateName,
+                  instanceName,
+                  message ->
+                      sender.sendMessage(
+                          new ComponentBuilder("[" + instanceName + "] ")
+                              .color(ChatColor.DARK_AQUA)
+                              .append(message)
+                              .color(ChatColor.GRAY)
+                              .create()));
+    } catch (IOException e) {
+      sender.sendMessage(
+          new ComponentBuilder("Unable to create new Instance: ")
+              .color(ChatColor.RED)
+              .append(e.getMessage())
+              .color(ChatColor.YELLOW)
+              .create());
+      return;
+    }
+
+    build
+        .getFuture()
+        .whenComplete(
+            (instance, e) -> {
+              if (e instanceof CancellationException) {
                 sender.sendMessage(
-                    new ComponentBuilder("Unable to create new Instance: ")
+                    new ComponentBuilder("Instance Creation Cancelled: ")
                         .color(ChatColor.RED)
-                        .append(e.getMessage())
+                        .append(instanceName)
                         .color(ChatColor.YELLOW)
                         .create());
                 return;
               }
 
-              // Null instance means it was cancelled silently
-              if (instance == null) {
+              if (e != null) {
+                sender.sendMessage(
+                    new ComponentBuilder("Unable to create new Instance: ")
+                        .color(ChatColor.RED)
+                        .append(String.valueOf(e.getMessage()))
+                        .color(ChatColor.YELLOW)
+                        .create());
                 return;
               }
 
@@ -934,6 +1020,39 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
             });
   }
 
+  /** Cancel creating an Instance */
+  private void instanceCancel(CommandSender sender, Arguments arguments) {
+    if (arguments.args.size() == 0 || arguments.args.get(0).equalsIgnoreCase("help")) {
+      sender.sendMessage(
+          new ComponentBuilder("--- [ Cancel Instance Help ] ---").color(ChatColor.AQUA).create());
+      sender.sendMessage(
+          new ComponentBuilder("Cancel creating an instance. Its files are removed.")
+              .color(ChatColor.DARK_AQUA)
+              .create());
+      sender.sendMessage(
+          new ComponentBuilder("/mb instance cancel")
+              .color(ChatColor.RED)
+              .append(" <instance_name>")
+              .color(ChatColor.YELLOW)
+              .create());
+      return;
+    }
+
+    Build build = plugin.getInstanceManager().getBuild(arguments.args.get(0));
+    if (build == null || !build.cancel()) {
+      sender.sendMessage(
+          new ComponentBuilder("Instance is not being created").color(ChatColor.RED).create());
+      return;
+    }
+
+    sender.sendMessage(
+        new ComponentBuilder("Cancelling Instance Creation: ")
+            .color(ChatColor.YELLOW)
+            .append(build.getInstanceName())
+            .color(ChatColor.YELLOW)
+            .create());
+  }
+
   /** Remove an Instance */
   private void instanceRemove(CommandSender sender, Arguments arguments) {
     if (arguments.args.size() == 0 || arguments.args.get(0).equalsIgnoreCase("help")) {
@@ -1184,9 +1303,14 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
             () -> {
               // Stop Instance
               try {
-                instance.stop();
-                sender.sendMessage(
-                    new ComponentBuilder("Instance Stopped").color(ChatColor.GREEN).create());
+                instance
+                    .stop()
+                    .thenRun(
+                        () ->
+                            sender.sendMessage(
+                                new ComponentBuilder("Instance Stopped")
+                                    .color(ChatColor.GREEN)
+                                    .create()));
               } catch (IOException e) {
                 sender.sendMessage(
                     new ComponentBuilder("Failed to Stop Instance: ")
@@ -1257,6 +1381,13 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
             .color(ChatColor.DARK_GRAY)
             .create());
 
+    if (instance.isRenderPending()) {
+      sender.sendMessage(
+          new ComponentBuilder("Global tags have changed. Restart to apply")
+              .color(ChatColor.YELLOW)
+              .create());
+    }
+
     sender.sendMessage(
         new ComponentBuilder("Auto: ")
             .color(ChatColor.DARK_AQUA)
@@ -1647,6 +1778,80 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
                                             .create()));
   }
 
+  /** Show Cache size and hit rate */
+  private void cacheInfo(CommandSender sender, Arguments arguments) {
+    if (arguments.args.size() > 0 && arguments.args.get(0).equalsIgnoreCase("help")) {
+      sender.sendMessage(
+          new ComponentBuilder("--- [ Cache Info Help ] ---").color(ChatColor.AQUA).create());
+      sender.sendMessage(
+          new ComponentBuilder("Show size and hit rate of the build cache")
+              .color(ChatColor.DARK_AQUA)
+              .create());
+      return;
+    }
+
+    CacheManager cacheManager = plugin.getCacheManager();
+    ArtifactStore artifacts = cacheManager.getArtifacts();
+
+    long size;
+    int count;
+    try {
+      size = artifacts.getSize();
+      count = artifacts.getCount();
+    } catch (IOException e) {
+      sender.sendMessage(
+          new ComponentBuilder("Unable to read cache: " + e.getMessage())
+              .color(ChatColor.RED)
+              .create());
+      return;
+    }
+
+    long hits = artifacts.getHits();
+    long builds = hits + artifacts.getMisses();
+
+    sender.sendMessage(new ComponentBuilder("--- Cache ---").color(ChatColor.AQUA).create());
+    sender.sendMessage(
+        new ComponentBuilder("Size: ")
+            .color(ChatColor.DARK_AQUA)
+            .append(
+                (size / 1024 / 1024)
+                    + " MB of "
+                    + (cacheManager.getMaxSize() / 1024 / 1024)
+                    + " MB in "
+                    + count
+                    + " files")
+            .color(ChatColor.YELLOW)
+            .create());
+    sender.sendMessage(
+        new ComponentBuilder("Hit Rate: ")
+            .color(ChatColor.DARK_AQUA)
+            .append(
+                builds == 0
+                    ? "-"
+                    : (hits * 100 / builds) + "% (" + hits + " of " + builds + " builds)")
+            .color(ChatColor.YELLOW)
+            .create());
+  }
+
+  /** Trim Cache now */
+  private void cacheTrim(CommandSender sender, Arguments arguments) {
+    if (arguments.args.size() > 0 && arguments.args.get(0).equalsIgnoreCase("help")) {
+      sender.sendMessage(
+          new ComponentBuilder("--- [ Cache Trim Help ] ---").color(ChatColor.AQUA).create());
+      sender.sendMessage(
+          new ComponentBuilder("Remove least recently used files until the cache fits its limit")
+              .color(ChatColor.DARK_AQUA)
+              .create());
+      return;
+    }
+
+    long freed = plugin.getCacheManager().trim();
+    sender.sendMessage(
+        new ComponentBuilder("Freed " + (freed / 1024 / 1024) + " MB")
+            .color(ChatColor.YELLOW)
+            .create());
+  }
+
   /**
    * Reload Config
    */
@@ -1659,6 +1864,7 @@ public class MultiBridgeCommand extends Command implements TabExecutor {
       return;
     }
 
+    plugin.getTemplateManager().reload();
     plugin.getInstanceManager().reloadConfig();
 
     sender.sendMessage(new ComponentBuilder("Reloaded Config").color(ChatColor.YELLOW).create());
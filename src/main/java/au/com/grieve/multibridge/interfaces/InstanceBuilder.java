@@ -1,7 +1,42 @@
 package au.com.grieve.multibridge.interfaces;
 
+import au.com.grieve.multibridge.objects.Build;
 import au.com.grieve.multibridge.objects.Instance;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
+/**
+ * Builds part of a new instance after its template has been copied
+ *
+ * <p>Builders run in parallel unless one lists another in getDependencies, in which case it starts
+ * once that one has finished.
+ */
 public interface InstanceBuilder {
   void build(Instance instance) throws Exception;
+
+  /** Return the name other builders use to depend on this one */
+  default String getName() {
+    return getClass().getSimpleName();
+  }
+
+  /** Return the names of builders that must finish before this one starts */
+  default Set<String> getDependencies() {
+    return Collections.emptySet();
+  }
+
+  /** Build instance, completing when done. By default runs build on the build's executor */
+  default CompletionStage<Void> buildAsync(Instance instance, Build build) {
+    return CompletableFuture.runAsync(
+        () -> {
+          try {
+            build(instance);
+          } catch (Exception e) {
+            throw new CompletionException(e);
+          }
+        },
+        build.getExecutor());
+  }
 }
@@ -0,0 +1,8 @@
+package au.com.grieve.multibridge.interfaces;
+
+import au.com.grieve.multibridge.objects.Instance;
+
+/** Notified after an Instance changes state, on the thread that made the change */
+public interface InstanceStateListener {
+  void onStateChange(Instance instance, Instance.State from, Instance.State to);
+}
@@ -0,0 +1,134 @@
+package au.com.grieve.multibridge.managers;
+
+import au.com.grieve.multibridge.MultiBridge;
+import au.com.grieve.multibridge.util.ArtifactStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+/**
+ * Looks after the build cache folder
+ *
+ * <p>Downloaded and built files are kept in an artifact store which is trimmed back to
+ * cache.max-size MB every cache.check minutes, removing the least recently used files first.
+ * Working folders left behind by builds that never finished, and jars cached directly in the
+ * cache folder by older versions, are removed on startup.
+ */
+public class CacheManager {
+  // Working folders younger than this may still be in use by another proxy sharing the cache
+  private static final long TEMP_AGE = TimeUnit.HOURS.toMillis(1);
+
+  // Jars older versions kept in the cache folder itself, now held in the artifact store
+  private static final String[] LEGACY_PREFIXES = {"original-", "vanilla-patched-", "vanillacord-"};
+
+  private final Path cacheFolder;
+  private final long maxSize;
+  private final ArtifactStore artifacts;
+  private final ScheduledTask trimTask;
+
+  public CacheManager(MultiBridge plugin) {
+    cacheFolder = plugin.getDataFolder().toPath().resolve("cache");
+    maxSize = plugin.getConfig().getLong("cache.max-size", 4096) * 1024 * 1024;
+    artifacts = new ArtifactStore(cacheFolder.resolve("artifacts"));
+
+    cleanTemp();
+    trimTask =
+        plugin
+            .getProxy()
+            .getScheduler()
+            .schedule(
+                plugin,
+                this::trim,
+                0,
+                plugin.getConfig().getInt("cache.check", 60),
+                TimeUnit.MINUTES);
+  }
+
+  /** Stop trimming the cache */
+  public void shutdown() {
+    trimTask.cancel();
+  }
+
+  /** Return the Artifact Store */
+  public ArtifactStore getArtifacts() {
+    return artifacts;
+  }
+
+  /** Return the cache size limit in bytes */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /** Trim the artifact store to size, returning the number of bytes freed */
+  public long trim() {
+    try {
+      long freed = artifacts.trim(maxSize);
+      if (freed > 0) {
+        System.out.println("[MultiBridge] Removed " + (freed / 1024 / 1024) + " MB from cache");
+      }
+      return freed;
+    } catch (IOException e) {
+      System.err.println("[MultiBridge] Unable to trim cache: " + e.getMessage());
+      return 0;
+    }
+  }
+
+  /** Remove working folders left behind by builds that never finished and legacy jars */
+  private void cleanTemp() {
+    if (!Files.isDirectory(cacheFolder)) {
+      return;
+    }
+
+    long cutoff = System.currentTimeMillis() - TEMP_AGE;
+    List<Path> stale;
+    try (Stream<Path> list = Files.list(cacheFolder)) {
+      stale =
+          list.filter(
+                  p ->
+                      (p.getFileName().toString().startsWith("temp-") && lastModified(p) < cutoff)
+                          || isLegacyJar(p))
+              .collect(Collectors.toList());
+    } catch (IOException e) {
+      System.err.println("[MultiBridge] Unable to list cache: " + e.getMessage());
+      return;
+    }
+
+    for (Path folder : stale) {
+      try (Stream<Path> walk = Files.walk(folder)) {
+        for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+          Files.deleteIfExists(path);
+        }
+      } catch (IOException e) {
+        System.err.println("[MultiBridge] Unable to remove " + folder + ": " + e.getMessage());
+      }
+    }
+  }
+
+  private static boolean isLegacyJar(Path path) {
+    String name = path.getFileName().toString();
+    if (!name.endsWith(".jar") || !Files.isRegularFile(path)) {
+      return false;
+    }
+    for (String prefix : LEGACY_PREFIXES) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long lastModified(Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+}
@@ -3,6 +3,8 @@ package au.com.grieve.multibridge.managers;
 import au.com.grieve.multibridge.MultiBridge;
 import au.com.grieve.multibridge.objects.Instance;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import net.md_5.bungee.config.Configuration;
@@ -12,6 +14,7 @@ import net.md_5.bungee.config.YamlConfiguration;
 public class GlobalManager {
   private final MultiBridge plugin;
   private Configuration globalConfig;
+  private volatile Map<String, String> tags;
 
   public GlobalManager(MultiBridge plugin) {
     this.plugin = plugin;
@@ -19,23 +22,35 @@ public class GlobalManager {
     loadConfig();
   }
 
+  private Path getConfigPath() {
+    return plugin.getDataFolder().toPath().resolve("global.yml");
+  }
+
   private void loadConfig() {
+    // Make sure we don't read back a stale file
+    plugin.getConfigStore().flush(getConfigPath());
+
     try {
       globalConfig =
           ConfigurationProvider.getProvider(YamlConfiguration.class)
-              .load(plugin.getDataFolder().toPath().resolve("global.yml").toFile());
+              .load(getConfigPath().toFile());
     } catch (IOException e) {
       globalConfig = new Configuration();
     }
+    tags = null;
   }
 
-  private void saveConfig() {
-    try {
-      ConfigurationProvider.getProvider(YamlConfiguration.class)
-          .save(globalConfig, plugin.getDataFolder().toPath().resolve("global.yml").toFile());
-    } catch (IOException e) {
-      e.printStackTrace();
+  /** Change globalConfig and save it. Locked so the background writer sees whole changes */
+  private void setConfig(String path, Object value) {
+    synchronized (globalConfig) {
+      globalConfig.set(path, value);
     }
+    saveConfig();
+  }
+
+  /** Save globalConfig. This is written out in the background shortly after */
+  private void saveConfig() {
+    plugin.getConfigStore().save(getConfigPath(), globalConfig);
   }
 
   @SuppressWarnings("unused")
@@ -48,45 +63,41 @@ public class GlobalManager {
   }
 
   public void setTag(String key, String value) {
-    globalConfig.set("tags." + key, value);
-    saveConfig();
+    setConfig("tags." + key, value);
+    tags = null;
 
-    // Update Instances
-    plugin
-        .getProxy()
-        .getScheduler()
-        .runAsync(
-            plugin,
-            () -> {
-              for (Instance instance : plugin.getInstanceManager().getInstances().values()) {
-                instance.reloadConfig();
-              }
-            });
+    notifyInstances(key);
   }
 
   public void clearTag(String key) {
-    globalConfig.set("tags." + key, null);
-    saveConfig();
+    setConfig("tags." + key, null);
+    tags = null;
+
+    notifyInstances(key);
+  }
 
-    // Update Instances
-    plugin
-        .getProxy()
-        .getScheduler()
-        .runAsync(
-            plugin,
-            () -> {
-              for (Instance instance : plugin.getInstanceManager().getInstances().values()) {
-                instance.reloadConfig();
-              }
-            });
+  /** Tell every loaded instance a tag has changed. Dormant ones will read it when loaded */
+  private void notifyInstances(String key) {
+    for (Instance instance : plugin.getInstanceManager().getLoadedInstances().values()) {
+      instance.onGlobalTagChanged(key);
+    }
   }
 
+  /** Return global Tags. This is cached until a tag is changed */
   public Map<String, String> getTags() {
-    Map<String, String> tags = new HashMap<>();
+    Map<String, String> current = tags;
+    if (current != null) {
+      return current;
+    }
 
-    for (String key : globalConfig.getSection("tags").getKeys()) {
-      tags.put(key, globalConfig.getSection("tags").getString(key));
+    Map<String, String> result = new HashMap<>();
+    Configuration section = globalConfig.getSection("tags");
+    for (String key : section.getKeys()) {
+      result.put(key, section.getString(key));
     }
-    return tags;
+
+    current = Collections.unmodifiableMap(result);
+    tags = current;
+    return current;
   }
 }
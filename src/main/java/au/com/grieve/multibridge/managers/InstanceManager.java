@@ -2,8 +2,12 @@ package au.com.grieve.multibridge.managers;
 
 import au.com.grieve.multibridge.MultiBridge;
 import au.com.grieve.multibridge.interfaces.InstanceBuilder;
+import au.com.grieve.multibridge.objects.Build;
 import au.com.grieve.multibridge.objects.Instance;
 import au.com.grieve.multibridge.objects.Template;
+import au.com.grieve.multibridge.util.PortAllocator;
+import au.com.grieve.multibridge.util.TemplateCloner;
+import au.com.grieve.multibridge.util.TreeCopier;
 import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
@@ -11,37 +15,171 @@ import net.md_5.bungee.config.YamlConfiguration;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class InstanceManager {
+  // Seconds to wait for killed instances to exit during shutdown
+  private static final long KILL_TIMEOUT = 10;
+
+  // Most threads used to parse instance configs
+  private static final int DISCOVERY_THREADS =
+      Math.min(8, Runtime.getRuntime().availableProcessors());
+
   private final MultiBridge plugin;
 
-  private Map<String, Instance> instances = new HashMap<>();
-  private List<Integer> ports = new ArrayList<>();
+  // Most instances are dormant so only auto instances are loaded up front, the rest on first use
+  private volatile Map<String, Instance> instances = new ConcurrentHashMap<>();
+  private volatile Map<String, Descriptor> dormant = new ConcurrentHashMap<>();
+  private final PortAllocator ports;
   private List<InstanceBuilder> instanceBuilders = new ArrayList<>();
+  private final ExecutorService copyExecutor;
+  private final Map<String, Build> builds = new ConcurrentHashMap<>();
+  private final Executor buildExecutor;
 
   public InstanceManager(MultiBridge plugin) {
     this.plugin = plugin;
 
+    // Port ranges. Fall back to the older min/max, which excludes max
+    Configuration config = plugin.getConfig();
+    List<String> portRanges = config.getStringList("ports.ranges");
+    if (portRanges.isEmpty()) {
+      portRanges =
+          Collections.singletonList(
+              config.getInt("ports.min", 26000) + "-" + (config.getInt("ports.max", 26100) - 1));
+    }
+
+    // A bad setting shouldn't stop the plugin loading
+    int quarantine = config.getInt("ports.quarantine", 60);
+    PortAllocator allocator;
+    try {
+      allocator = new PortAllocator(portRanges, quarantine);
+    } catch (IllegalArgumentException e) {
+      System.err.println("[MultiBridge] " + e.getMessage() + ". Using ports 26000-26099");
+      allocator = new PortAllocator(Collections.singletonList("26000-26099"), quarantine);
+    }
+    ports = allocator;
+
+    // Shared by all copies so creating many instances at once stays bounded
+    AtomicInteger copyThreads = new AtomicInteger();
+    copyExecutor =
+        Executors.newFixedThreadPool(
+            Math.max(
+                1,
+                plugin
+                    .getConfig()
+                    .getInt("clone.threads", Runtime.getRuntime().availableProcessors())),
+            r -> {
+              Thread thread = new Thread(r, "MultiBridge Copier #" + copyThreads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    // Builders run on the proxy's async pool
+    buildExecutor = r -> plugin.getProxy().getScheduler().runAsync(plugin, r);
+
     loadInstances();
   }
 
   /**
-   * Stop all Instances
+   * Stop all running instances in parallel and wait up to timeout seconds for them to exit. Any
+   * still running after that are killed. The outcome for each instance is printed.
    */
-  public void stopAll() {
+  public void shutdown(long timeout) {
+    long started = System.nanoTime();
+
+    // Abandon anything still being built
+    for (Build build : builds.values()) {
+      build.cancel();
+    }
+
+    Map<Instance, CompletableFuture<Integer>> running = new LinkedHashMap<>();
+    Map<Instance, Long> exitedAt = new ConcurrentHashMap<>();
+
     for (Instance instance : instances.values()) {
+      if (!instance.isRunning()) {
+        continue;
+      }
+
+      CompletableFuture<Integer> exit = instance.getExitFuture();
       try {
         instance.stop();
       } catch (IOException ignored) {
+        // Already stopping
+      }
+      exit.thenRun(() -> exitedAt.put(instance, System.nanoTime()));
+      running.put(instance, exit);
+    }
+
+    if (running.isEmpty()) {
+      return;
+    }
+
+    System.out.println(
+        "Waiting up to " + timeout + " seconds for " + running.size() + " instances to stop");
+    CompletableFuture<Void> all =
+        CompletableFuture.allOf(running.values().toArray(new CompletableFuture<?>[0]));
+
+    List<Instance> killed = new ArrayList<>();
+    try {
+      try {
+        all.get(timeout, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        for (Map.Entry<Instance, CompletableFuture<Integer>> entry : running.entrySet()) {
+          if (!entry.getValue().isDone()) {
+            entry.getKey().kill();
+            killed.add(entry.getKey());
+          }
+        }
+        all.get(KILL_TIMEOUT, TimeUnit.SECONDS);
+      }
+    } catch (TimeoutException | ExecutionException ignored) {
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    // Summary
+    for (Map.Entry<Instance, CompletableFuture<Integer>> entry : running.entrySet()) {
+      Instance instance = entry.getKey();
+      Long exited = exitedAt.get(instance);
+      if (exited == null) {
+        System.err.println("[" + instance.getName() + "] Did not exit");
+        continue;
+      }
+
+      String elapsed = String.format("%.1fs", (exited - started) / 1e9);
+      if (killed.contains(instance)) {
+        System.err.println("[" + instance.getName() + "] Killed, exited after " + elapsed);
+      } else {
+        int exitCode = entry.getValue().getNow(-1);
+        System.out.println(
+            "[" + instance.getName() + "] Stopped in " + elapsed + " (exit code " + exitCode + ")");
       }
     }
   }
@@ -59,10 +197,14 @@ public class InstanceManager {
 
   /**
    * Load all instances, preserving running ones
+   *
+   * <p>Every instance.yml is parsed in parallel. Auto instances are then created while the rest are
+   * kept as descriptors until they are first asked for.
    */
-  private void loadInstances() {
-    Map<String, Instance> old = instances;
-    instances = new HashMap<>();
+  private synchronized void loadInstances() {
+    Map<String, Instance> old = new HashMap<>(instances);
+    Map<String, Instance> loaded = new ConcurrentHashMap<>();
+    Map<String, Descriptor> found = new ConcurrentHashMap<>();
 
     if (!Files.exists(getInstanceFolder())) {
       try {
@@ -72,34 +214,42 @@ public class InstanceManager {
       }
     }
 
+    List<Path> folders;
     try (Stream<Path> paths = Files.list(getInstanceFolder())) {
-      paths
-          .filter(Files::isDirectory)
-          .filter(p -> Files.exists(p.resolve("instance.yml")))
-          .forEach(
-              p -> {
-                String name = p.getFileName().toString();
-                if (!old.containsKey(name)) {
-                  // Can't create same name as a bungee server, so skip if so
-                  //                            if
-                  // (!plugin.getProxy().getServers().containsKey(name)) {
-                  try {
-                    Instance instance = new Instance(this, p);
-                    instances.put(instance.getName(), instance);
-                  } catch (InstantiationException e) {
-                    e.printStackTrace();
-                  }
-                  //                            }
-                } else {
-                  Instance oldInstance = old.remove(name);
-                  oldInstance.reloadConfig();
-                  instances.put(name, oldInstance);
-                }
-              });
+      folders =
+          paths
+              .filter(Files::isDirectory)
+              .filter(p -> Files.exists(p.resolve("instance.yml")))
+              // Folders still being built are registered once their build finishes
+              .filter(p -> !builds.containsKey(p.getFileName().toString()))
+              .collect(Collectors.toList());
     } catch (IOException e) {
       e.printStackTrace();
+      folders = Collections.emptyList();
     }
 
+    for (Descriptor descriptor : discover(folders)) {
+      Instance oldInstance = old.remove(descriptor.name);
+      if (oldInstance != null) {
+        oldInstance.reloadConfig();
+        loaded.put(descriptor.name, oldInstance);
+        continue;
+      }
+
+      if (descriptor.isAuto()) {
+        try {
+          loaded.put(descriptor.name, descriptor.load(this));
+        } catch (InstantiationException e) {
+          e.printStackTrace();
+        }
+      } else {
+        found.put(descriptor.name, descriptor);
+      }
+    }
+
+    instances = loaded;
+    dormant = found;
+
     // Stop and Unregister Old Instances that no longer exist
     plugin
         .getProxy()
@@ -119,31 +269,146 @@ public class InstanceManager {
             });
   }
 
+  /** Parse the instance.yml in each folder using a bounded pool */
+  private List<Descriptor> discover(List<Path> folders) {
+    if (folders.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    // Make sure we read back what has been saved
+    plugin.getConfigStore().flush();
+
+    AtomicInteger threads = new AtomicInteger();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            Math.min(folders.size(), DISCOVERY_THREADS),
+            r -> {
+              Thread thread = new Thread(r, "MultiBridge Discovery #" + threads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    try {
+      List<Future<Descriptor>> futures = new ArrayList<>();
+      for (Path folder : folders) {
+        futures.add(executor.submit(() -> new Descriptor(folder)));
+      }
+
+      List<Descriptor> result = new ArrayList<>();
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          result.add(futures.get(i).get());
+        } catch (ExecutionException e) {
+          System.err.println(
+              "Unable to load instance " + folders.get(i) + ": " + e.getCause().getMessage());
+        }
+      }
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Collections.emptyList();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** Create a dormant instance, returning null if there is no such instance */
+  private synchronized Instance load(String name) {
+    Instance instance = instances.get(name);
+    if (instance != null) {
+      return instance;
+    }
+
+    Descriptor descriptor = dormant.get(name);
+    if (descriptor == null) {
+      return null;
+    }
+
+    try {
+      instance = descriptor.load(this);
+    } catch (InstantiationException e) {
+      e.printStackTrace();
+      return null;
+    }
+    instances.put(name, instance);
+    dormant.remove(name);
+    return instance;
+  }
+
   public void reloadConfig() {
     loadInstances();
   }
 
-  /** Return an instance by name */
+  /** Return an instance by name, loading it if needed */
   public Instance getInstance(String name) {
-    if (instances.containsKey(name)) {
-      return instances.get(name);
-    }
+    Instance instance = instances.get(name);
+    return instance != null ? instance : load(name);
+  }
+
+  /** Return true if an instance exists, without loading it */
+  public boolean hasInstance(String name) {
+    return instances.containsKey(name) || dormant.containsKey(name);
+  }
 
-    return null;
+  /** Return the names of all instances */
+  public Set<String> getInstanceNames() {
+    Set<String> names = new TreeSet<>(instances.keySet());
+    names.addAll(dormant.keySet());
+    return names;
   }
 
-  /** Return a list of Instances */
+  /** Return the state of an instance without loading it. Instances not loaded are stopped */
+  public Instance.State getState(String name) {
+    Instance instance = instances.get(name);
+    return instance != null ? instance.getState() : Instance.State.STOPPED;
+  }
+
+  /** Return a list of Instances, loading them all */
   public Map<String, Instance> getInstances() {
+    for (String name : dormant.keySet()) {
+      load(name);
+    }
     return instances;
   }
 
+  /** Return instances that have been loaded. Dormant instances are never running */
+  public Map<String, Instance> getLoadedInstances() {
+    return instances;
+  }
+
+  /** Return instances with a local tag set to value, only loading those that match */
+  public List<Instance> getInstancesWithTag(String key, String value) {
+    List<Instance> result = new ArrayList<>();
+    for (Instance instance : instances.values()) {
+      if (value.equals(instance.getLocalTag(key))) {
+        result.add(instance);
+      }
+    }
+    for (Descriptor descriptor : dormant.values()) {
+      if (value.equals(descriptor.instanceConfig.getString("tags." + key, null))) {
+        Instance instance = load(descriptor.name);
+        if (instance != null) {
+          result.add(instance);
+        }
+      }
+    }
+    return result;
+  }
+
   /** Remove Instance */
   public void remove(Instance instance) throws IOException {
     assert (instance != null);
-    assert (!instance.isRunning());
 
-    instance.cleanUp();
+    // Stays BUSY once removed so nothing holding on to it can start it again
+    instance.markBusy();
+    try {
+      instance.cleanUp();
+    } catch (RuntimeException e) {
+      instance.clearBusy();
+      throw e;
+    }
     instances.remove(instance.getName());
+    dormant.remove(instance.getName());
 
     // Remove the Directory
     //        try (Stream<Path> stream =
@@ -155,28 +420,34 @@ public class InstanceManager {
     //        }
   }
 
+  /** Remove Instance and delete its folder */
+  public void delete(Instance instance) throws IOException {
+    remove(instance);
+    deletePath(instance.getInstanceFolder());
+  }
+
   /**
    * Return a free port
    *
    * @return port
    */
   public int getPort() throws IndexOutOfBoundsException {
-    Configuration config = plugin.getConfig();
-    Integer portMin = config.getInt("ports.min", 26000);
-    Integer portMax = config.getInt("ports.max", 26100);
-    for (Integer port = portMin; port < portMax; port++) {
-      if (!ports.contains(port)) {
-        ports.add(port);
-        return port;
-      }
+    int port = ports.allocate();
+    if (ports.getUtilisation() >= 0.9) {
+      System.err.println(
+          "[MultiBridge] Warning: " + ports.getUsed() + "/" + ports.getTotal() + " ports in use");
     }
-
-    throw new IndexOutOfBoundsException("No free ports");
+    return port;
   }
 
   /** Release used port */
   public void releasePort(int port) {
-    ports.remove(Integer.valueOf(port));
+    ports.release(port);
+  }
+
+  /** Return the port allocator */
+  public PortAllocator getPorts() {
+    return ports;
   }
 
   private void deletePath(Path path) throws IOException {
@@ -184,7 +455,30 @@ public class InstanceManager {
     Files.walk(path).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
   }
 
+  /** Create a new Instance from a Template, waiting until it has been built */
   public Instance create(String templateName, String instanceName) throws IOException {
+    try {
+      return createAsync(templateName, instanceName, null).getFuture().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    } catch (CancellationException e) {
+      throw new IOException("Cancelled");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage());
+    }
+  }
+
+  /**
+   * Start creating a new Instance from a Template
+   *
+   * <p>The template is copied and then the builders are run, in parallel where their dependencies
+   * allow. If the build fails or is cancelled the instance folder is removed.
+   *
+   * @param listener receives progress messages. May be null
+   */
+  public Build createAsync(String templateName, String instanceName, Consumer<String> listener)
+      throws IOException {
     Template template = plugin.getTemplateManager().getTemplate(templateName);
 
     // Does Template Exist?
@@ -193,7 +487,7 @@ public class InstanceManager {
     }
 
     // Does Instance Already exist?
-    if (getInstance(instanceName) != null) {
+    if (hasInstance(instanceName)) {
       throw new IOException("Instance already exists");
     }
 
@@ -202,46 +496,229 @@ public class InstanceManager {
       throw new IOException("An existing Bungee server already exists with that name");
     }
 
-    // We always want to delete the folder if we have an exception
+    Build build = new Build(instanceName, buildExecutor, listener);
+    if (builds.putIfAbsent(instanceName, build) != null) {
+      throw new IOException("Instance is already being created");
+    }
 
+    Path target = getInstanceFolder().resolve(instanceName);
+    AtomicReference<Instance> created = new AtomicReference<>();
+    CompletableFuture.runAsync(
+            () -> {
+              try {
+                created.set(prepare(template, templateName, target, build));
+              } catch (IOException e) {
+                throw new CompletionException(e);
+              }
+            },
+            buildExecutor)
+        .thenCompose(v -> runBuilders(created.get(), build))
+        .whenComplete((v, e) -> finishBuild(build, target, created.get(), e));
+    return build;
+  }
+
+  /** Copy the Template to a new Instance folder */
+  private Instance prepare(Template template, String templateName, Path target, Build build)
+      throws IOException {
+    // Make sure parent folder exists
+    if (!Files.exists(target.getParent())) {
+      Files.createDirectories(target.getParent());
+    }
+
+    // Copy Template to Instance
+    build.progress("Copying Template: " + templateName);
+    getCloner(template)
+        .clone(
+            template.getTemplateFolder(),
+            target,
+            progress -> build.progress("Copied " + progress),
+            build::isCancelled);
+    if (build.isCancelled()) {
+      throw new CancellationException("Cancelled");
+    }
+
+    // Create new Instance Config
+    Configuration instanceConfig = new Configuration();
+    ConfigurationProvider.getProvider(YamlConfiguration.class)
+        .save(instanceConfig, target.resolve("instance.yml").toFile());
+
+    Instance instance;
     try {
+      instance = new Instance(this, target);
+    } catch (InstantiationException e) {
+      throw new IOException(e.getMessage());
+    }
+    instance.setTag("MB_TEMPLATE_NAME", templateName);
+    return instance;
+  }
 
-      Path target = getInstanceFolder().resolve(instanceName);
+  /** Run each builder once those it depends on have finished, failing fast */
+  private CompletableFuture<Void> runBuilders(Instance instance, Build build) {
+    List<InstanceBuilder> ordered;
+    try {
+      ordered = orderBuilders(getInstanceBuilders());
+    } catch (IOException e) {
+      CompletableFuture<Void> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Map<String, CompletableFuture<Void>> stages = new HashMap<>();
+    for (InstanceBuilder builder : ordered) {
+      CompletableFuture<?>[] dependencies =
+          builder.getDependencies().stream().map(stages::get).toArray(CompletableFuture[]::new);
+
+      stages.put(
+          builder.getName(),
+          CompletableFuture.allOf(dependencies)
+              .thenCompose(
+                  v -> {
+                    if (build.isCancelled() || failure.get() != null) {
+                      throw new CancellationException();
+                    }
+                    build.progress("Running " + builder.getName());
+                    return builder.buildAsync(instance, build);
+                  })
+              .whenComplete(
+                  (v, e) -> {
+                    Throwable cause = unwrap(e);
+                    if (cause != null && !(cause instanceof CancellationException)) {
+                      failure.compareAndSet(null, cause);
+                    }
+                  }));
+    }
+
+    // Wait for every stage to stop before reporting, so nothing is still writing to the folder
+    return CompletableFuture.allOf(stages.values().toArray(new CompletableFuture[0]))
+        .handle(
+            (v, e) -> {
+              if (failure.get() != null) {
+                throw new CompletionException(failure.get());
+              }
+              if (e != null) {
+                throw new CompletionException(unwrap(e));
+              }
+              return null;
+            });
+  }
 
-      // Make sure parent folder exists
-      if (!Files.exists(target.getParent())) {
-        Files.createDirectories(target.getParent());
+  /** Return builders ordered so each comes after those it depends on */
+  private static List<InstanceBuilder> orderBuilders(List<InstanceBuilder> builders)
+      throws IOException {
+    Map<String, InstanceBuilder> byName = new LinkedHashMap<>();
+    for (InstanceBuilder builder : builders) {
+      if (byName.putIfAbsent(builder.getName(), builder) != null) {
+        throw new IOException("More than one builder is named " + builder.getName());
       }
+    }
+
+    List<InstanceBuilder> ordered = new ArrayList<>();
+    Set<String> visited = new HashSet<>();
+    for (InstanceBuilder builder : byName.values()) {
+      visitBuilder(builder, byName, visited, new HashSet<>(), ordered);
+    }
+    return ordered;
+  }
+
+  private static void visitBuilder(
+      InstanceBuilder builder,
+      Map<String, InstanceBuilder> byName,
+      Set<String> visited,
+      Set<String> visiting,
+      List<InstanceBuilder> ordered)
+      throws IOException {
+    if (visited.contains(builder.getName())) {
+      return;
+    }
+    if (!visiting.add(builder.getName())) {
+      throw new IOException("Builder " + builder.getName() + " depends on itself");
+    }
 
-      // Copy Template to Instance
-      for (Path p : (Iterable<Path>) Files.walk(template.getTemplateFolder())::iterator) {
-        Files.copy(
-            p,
-            target.resolve(template.getTemplateFolder().relativize(p)),
-            LinkOption.NOFOLLOW_LINKS);
+    for (String dependency : builder.getDependencies()) {
+      InstanceBuilder required = byName.get(dependency);
+      if (required == null) {
+        throw new IOException(
+            "Builder " + builder.getName() + " depends on unknown builder " + dependency);
       }
+      visitBuilder(required, byName, visited, visiting, ordered);
+    }
+
+    visiting.remove(builder.getName());
+    visited.add(builder.getName());
+    ordered.add(builder);
+  }
 
-      // Create new Instance Config
-      Configuration instanceConfig = new Configuration();
-      ConfigurationProvider.getProvider(YamlConfiguration.class)
-          .save(instanceConfig, target.resolve("instance.yml").toFile());
+  /** Register a finished Instance, or clean up after a failed or cancelled one */
+  private void finishBuild(Build build, Path target, Instance instance, Throwable error) {
+    error = unwrap(error);
+    if (error == null && build.isCancelled()) {
+      error = new CancellationException("Cancelled");
+    }
 
-      Instance instance = new Instance(this, target);
-      instance.setTag("MB_TEMPLATE_NAME", templateName);
+    if (error == null) {
+      instances.put(build.getInstanceName(), instance);
+      builds.remove(build.getInstanceName(), build);
+      build.progress("Created");
+      build.getFuture().complete(instance);
+      return;
+    }
 
-      // Execute Builders
-      for (InstanceBuilder instanceBuilder : getInstanceBuilders()) {
-        instanceBuilder.build(instance);
+    if (error instanceof CancellationException) {
+      build.progress("Cancelled");
+    } else {
+      System.err.println("[" + build.getInstanceName() + "] Build failed: " + error);
+    }
+
+    if (instance != null) {
+      instance.cleanUp();
+    }
+    try {
+      if (Files.exists(target)) {
+        deletePath(target);
       }
+    } catch (IOException e) {
+      System.err.println("[" + build.getInstanceName() + "] Unable to remove: " + e.getMessage());
+    }
 
-      instances.put(instanceName, instance);
-      return instance;
+    builds.remove(build.getInstanceName(), build);
+    build.getFuture().completeExceptionally(error);
+  }
 
-    } catch (Throwable e) {
-      e.printStackTrace();
-      deletePath(getInstanceFolder().resolve(instanceName));
-      throw new IOException(e.getMessage());
+  private static Throwable unwrap(Throwable e) {
+    while (e instanceof CompletionException && e.getCause() != null) {
+      e = e.getCause();
     }
+    return e;
+  }
+
+  /** Return the build in progress for an instance, or null if it isn't being built */
+  public Build getBuild(String name) {
+    return builds.get(name);
+  }
+
+  /** Return the builds in progress keyed by instance name */
+  public Map<String, Build> getBuilds() {
+    return Collections.unmodifiableMap(builds);
+  }
+
+  /** Return a cloner for a template using the configured strategy */
+  private TemplateCloner getCloner(Template template) {
+    TemplateCloner.Strategy strategy;
+    try {
+      strategy =
+          TemplateCloner.Strategy.valueOf(
+              plugin.getConfig().getString("clone.strategy", "LINK").toUpperCase());
+    } catch (IllegalArgumentException e) {
+      strategy = TemplateCloner.Strategy.COPY;
+    }
+
+    Configuration config = template.getTemplateConfig();
+    return new TemplateCloner(
+        strategy,
+        config.getStringList("clone.readonly"),
+        config.getStringList("clone.mutable"),
+        new TreeCopier(copyExecutor));
   }
 
   public MultiBridge getPlugin() {
@@ -260,4 +737,42 @@ public class InstanceManager {
   private List<InstanceBuilder> getInstanceBuilders() {
     return this.instanceBuilders;
   }
+
+  /** An instance that has not been loaded yet */
+  private static class Descriptor {
+    final Path folder;
+    final String name;
+    final Configuration instanceConfig;
+    final Configuration templateConfig;
+
+    /** Parse folder/instance.yml, as well as template.yml if the instance will be loaded */
+    Descriptor(Path folder) throws IOException {
+      this.folder = folder;
+      instanceConfig =
+          ConfigurationProvider.getProvider(YamlConfiguration.class)
+              .load(folder.resolve("instance.yml").toFile());
+      name = instanceConfig.getString("name", folder.getFileName().toString());
+      if (isAuto()) {
+        Configuration config;
+        try {
+          config =
+              ConfigurationProvider.getProvider(YamlConfiguration.class)
+                  .load(folder.resolve("template.yml").toFile());
+        } catch (IOException e) {
+          config = new Configuration();
+        }
+        templateConfig = config;
+      } else {
+        templateConfig = null;
+      }
+    }
+
+    boolean isAuto() {
+      return instanceConfig.getBoolean("auto.enabled", false);
+    }
+
+    Instance load(InstanceManager manager) throws InstantiationException {
+      return new Instance(manager, folder, instanceConfig, templateConfig);
+    }
+  }
 }
@@ -0,0 +1,296 @@
+package au.com.grieve.multibridge.managers;
+
+import au.com.grieve.multibridge.MultiBridge;
+import au.com.grieve.multibridge.util.RingBuffer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes instance console output to per-instance log files
+ *
+ * <p>Reader threads only push lines into a lock-free buffer per instance. A single writer thread
+ * drains all of them in batches into logs/console.log under each instance folder. Once a log grows
+ * past logs.max-size KB it is rotated and compressed in the background, keeping logs.keep old logs.
+ * Lines can optionally be mirrored to the proxy console as well.
+ */
+public class LogManager {
+  private static final int BUFFER_SIZE = 4096;
+  private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final int NEWLINE_LENGTH = System.lineSeparator().length();
+
+  private final long maxSize;
+  private final int keep;
+  private final Set<InstanceLog> logs = ConcurrentHashMap.newKeySet();
+  private final ExecutorService compressor;
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  public LogManager(MultiBridge plugin) {
+    maxSize = plugin.getConfig().getLong("logs.max-size", 10240) * 1024;
+    keep = plugin.getConfig().getInt("logs.keep", 5);
+
+    compressor =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread thread = new Thread(r, "MultiBridge Log Compressor");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    writer = new Thread(this::run, "MultiBridge Log Writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Open the console log of an instance
+   *
+   * @param mirror which lines to also print to the proxy console. One of none, all or a regex
+   */
+  public InstanceLog open(String name, Path instanceFolder, String mirror) throws IOException {
+    InstanceLog log = new InstanceLog(name, instanceFolder.resolve("logs"), mirror);
+    logs.add(log);
+    LockSupport.unpark(writer);
+    return log;
+  }
+
+  /** Write out everything outstanding and stop */
+  public void shutdown() {
+    running = false;
+    for (InstanceLog log : logs) {
+      log.close();
+    }
+    LockSupport.unpark(writer);
+
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+      compressor.shutdown();
+      compressor.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    while (running || !logs.isEmpty()) {
+      boolean busy = false;
+      for (InstanceLog log : logs) {
+        try {
+          busy |= log.drain();
+        } catch (IOException e) {
+          // Give up on this log. Retrying would fail and report again every pass, and the queued
+          // lines would keep shutdown waiting on it
+          System.err.println("[" + log.name + "] Unable to write console log: " + e.getMessage());
+          log.close();
+          log.closeFile();
+          logs.remove(log);
+          continue;
+        }
+
+        if (log.closed && log.buffer.isEmpty()) {
+          log.closeFile();
+          logs.remove(log);
+        }
+      }
+
+      if (!busy) {
+        LockSupport.parkNanos(IDLE_WAIT);
+      }
+    }
+  }
+
+  /** Compress a rotated log and remove the oldest ones beyond what we keep */
+  private void compress(Path folder, Path rotated) {
+    Path archive = rotated.resolveSibling(rotated.getFileName() + ".gz");
+    try (InputStream input = Files.newInputStream(rotated);
+        OutputStream output = new GZIPOutputStream(Files.newOutputStream(archive))) {
+      byte[] buffer = new byte[65536];
+      for (int len; (len = input.read(buffer)) > 0; ) {
+        output.write(buffer, 0, len);
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to compress " + rotated + ": " + e.getMessage());
+      return;
+    }
+
+    try {
+      Files.delete(rotated);
+
+      List<Path> archives;
+      try (Stream<Path> paths = Files.list(folder)) {
+        archives =
+            paths
+                .filter(p -> p.getFileName().toString().matches("console-.*\\.log\\.gz"))
+                .sorted(Comparator.comparing(Path::getFileName).reversed())
+                .collect(Collectors.toList());
+      }
+      for (Path old : archives.subList(Math.min(keep, archives.size()), archives.size())) {
+        Files.delete(old);
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to clean up " + folder + ": " + e.getMessage());
+    }
+  }
+
+  /** Return the number of bytes line takes in UTF-8, without encoding it */
+  private static int utf8Length(String line) {
+    int length = 0;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < line.length()
+          && Character.isLowSurrogate(line.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        // Unpaired surrogates are written as '?'
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /** Console log of a single instance */
+  public class InstanceLog {
+    private final String name;
+    private final Path folder;
+    private final Path file;
+    private final RingBuffer<String> buffer = new RingBuffer<>(BUFFER_SIZE);
+    private final AtomicLong dropped = new AtomicLong();
+    private final boolean mirrorAll;
+    private final Pattern mirrorPattern;
+    private BufferedWriter output;
+    private long size;
+    private volatile boolean closed = false;
+
+    private InstanceLog(String name, Path folder, String mirror) throws IOException {
+      this.name = name;
+      this.folder = folder;
+      this.file = folder.resolve("console.log");
+
+      switch (mirror.toLowerCase()) {
+        case "all":
+        case "true":
+          mirrorAll = true;
+          mirrorPattern = null;
+          break;
+        case "none":
+        case "false":
+        case "":
+          mirrorAll = false;
+          mirrorPattern = null;
+          break;
+        default:
+          mirrorAll = false;
+          Pattern pattern;
+          try {
+            pattern = Pattern.compile(mirror);
+          } catch (PatternSyntaxException e) {
+            System.err.println("[" + name + "] Invalid MB_LOG_OUTPUT: " + e.getMessage());
+            pattern = null;
+          }
+          mirrorPattern = pattern;
+      }
+
+      Files.createDirectories(folder);
+      openFile();
+    }
+
+    private void openFile() throws IOException {
+      output =
+          Files.newBufferedWriter(
+              file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      size = Files.size(file);
+    }
+
+    /** Queue a line. Never blocks, lines are dropped if the writer falls too far behind */
+    public void append(String line) {
+      if (!buffer.offer(line)) {
+        dropped.incrementAndGet();
+      }
+    }
+
+    /** Stop accepting lines. Anything already queued is still written */
+    public void close() {
+      closed = true;
+    }
+
+    /** Write out queued lines, returning true if there were any */
+    private boolean drain() throws IOException {
+      boolean wrote = false;
+      for (String line; (line = buffer.poll()) != null; ) {
+        wrote = true;
+        output.write(line);
+        output.newLine();
+        size += utf8Length(line) + NEWLINE_LENGTH;
+
+        if (mirrorAll || (mirrorPattern != null && mirrorPattern.matcher(line).find())) {
+          System.out.println("[" + name + "] " + line);
+        }
+      }
+
+      long lost = dropped.getAndSet(0);
+      if (lost > 0) {
+        wrote = true;
+        String message = "[MultiBridge] " + lost + " lines dropped";
+        output.write(message);
+        output.newLine();
+        size += message.length() + NEWLINE_LENGTH;
+      }
+
+      if (wrote) {
+        output.flush();
+        if (size >= maxSize) {
+          rotate();
+        }
+      }
+      return wrote;
+    }
+
+    /** Move the current log aside and compress it in the background */
+    private void rotate() throws IOException {
+      output.close();
+      Path rotated =
+          folder.resolve(
+              "console-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".log");
+      Files.move(file, rotated);
+      compressor.execute(() -> compress(folder, rotated));
+      openFile();
+    }
+
+    private void closeFile() {
+      try {
+        output.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package au.com.grieve.multibridge.managers;
+
+import au.com.grieve.multibridge.MultiBridge;
+import au.com.grieve.multibridge.objects.Instance;
+import au.com.grieve.multibridge.objects.Template;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.event.ServerConnectEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+import net.md_5.bungee.config.Configuration;
+import net.md_5.bungee.event.EventHandler;
+import net.md_5.bungee.event.EventPriority;
+
+/**
+ * Keeps a number of spare instances running for templates that ask for it
+ *
+ * <p>A template with pool.size set gets a virtual server, named by pool.server or else the template
+ * name. Players connecting to it are sent straight to one of the already started spares, which then
+ * becomes a normal instance, and the pool is topped up in the background.
+ */
+public class PoolManager implements Listener {
+  private static final String POOL_TAG = "MB_POOL";
+  // Set on claimed spares that are to be deleted once they stop. Saved so it outlives a restart
+  private static final String CLAIMED_TAG = "MB_POOL_CLAIMED";
+
+  private final MultiBridge plugin;
+  private final Map<String, AtomicInteger> creating = new ConcurrentHashMap<>();
+  private final Set<String> reservedNames = new HashSet<>();
+  private volatile Map<String, String> pools = new HashMap<>();
+  private final ScheduledTask fillTask;
+  private volatile boolean closed = false;
+
+  public PoolManager(MultiBridge plugin) {
+    this.plugin = plugin;
+
+    plugin.getProxy().getPluginManager().registerListener(plugin, this);
+    fillTask =
+        plugin
+            .getProxy()
+            .getScheduler()
+            .schedule(
+                plugin,
+                this::fillAll,
+                0,
+                plugin.getConfig().getInt("pool.check", 30),
+                TimeUnit.SECONDS);
+  }
+
+  /** Stop topping up pools */
+  public void shutdown() {
+    closed = true;
+    fillTask.cancel();
+  }
+
+  /** Return pooled Template names keyed by their virtual server name */
+  public Map<String, String> getPools() {
+    return pools;
+  }
+
+  /** Refresh the list of pools, top each of them up and remove stopped claimed spares */
+  public void fillAll() {
+    // Catches spares that stopped while we weren't running
+    for (Instance claimed : plugin.getInstanceManager().getInstancesWithTag(CLAIMED_TAG, "true")) {
+      if (claimed.getState() == Instance.State.STOPPED) {
+        discard(claimed);
+      }
+    }
+
+    Map<String, String> found = new HashMap<>();
+    for (Map.Entry<String, Template> entry :
+        plugin.getTemplateManager().getTemplates().entrySet()) {
+      Configuration config = entry.getValue().getTemplateConfig();
+      if (config.getInt("pool.size", 0) > 0) {
+        found.put(config.getString("pool.server", entry.getKey()), entry.getKey());
+      }
+    }
+    pools = found;
+
+    for (Map.Entry<String, String> entry : found.entrySet()) {
+      registerServer(entry.getKey());
+      fill(entry.getValue());
+    }
+  }
+
+  /** Add a placeholder server to Bungee for players to connect to */
+  private void registerServer(String serverName) {
+    if (plugin.getProxy().getServers().containsKey(serverName)) {
+      return;
+    }
+
+    ServerInfo info =
+        plugin
+            .getProxy()
+            .constructServerInfo(
+                serverName, new InetSocketAddress("127.0.0.1", 0), serverName, false);
+    plugin.getProxy().getServers().put(serverName, info);
+  }
+
+  /** Return spare Instances of a Template */
+  public List<Instance> getSpares(String templateName) {
+    return plugin.getInstanceManager().getInstancesWithTag(POOL_TAG, templateName);
+  }
+
+  /** Start stopped spares and create new ones until the pool is full */
+  public void fill(String templateName) {
+    if (closed) {
+      return;
+    }
+
+    Template template = plugin.getTemplateManager().getTemplate(templateName);
+    if (template == null) {
+      return;
+    }
+
+    Configuration config = template.getTemplateConfig();
+    String serverName = config.getString("pool.server", templateName);
+    List<Instance> spares = getSpares(templateName);
+
+    for (Instance spare : spares) {
+      if (spare.getState() == Instance.State.STOPPED) {
+        plugin
+            .getProxy()
+            .getScheduler()
+            .runAsync(
+                plugin,
+                () -> {
+                  try {
+                    spare.start();
+                  } catch (IOException e) {
+                    System.err.println(
+                        "[" + spare.getName() + "] Failed to start spare: " + e.getMessage());
+                  }
+                });
+      }
+    }
+
+    // Count and reserve together so concurrent fills can't both create the same missing spares
+    AtomicInteger pending = creating.computeIfAbsent(templateName, k -> new AtomicInteger());
+    int missing;
+    synchronized (pending) {
+      missing = config.getInt("pool.size", 0) - getSpares(templateName).size() - pending.get();
+      if (missing > 0) {
+        pending.addAndGet(missing);
+      }
+    }
+
+    for (int i = 0; i < missing; i++) {
+      String instanceName = reserveName(serverName);
+      plugin
+          .getProxy()
+          .getScheduler()
+          .runAsync(
+              plugin,
+              () -> {
+                try {
+                  System.out.println("[" + instanceName + "] Creating spare for: " + serverName);
+                  Instance instance =
+                      plugin.getInstanceManager().create(templateName, instanceName);
+                  instance.setTag(POOL_TAG, templateName);
+                  instance.start();
+                } catch (IOException e) {
+                  System.err.println(
+                      "[" + instanceName + "] Failed to create spare: " + e.getMessage());
+                } finally {
+                  releaseName(instanceName);
+                  pending.decrementAndGet();
+                }
+              });
+    }
+  }
+
+  /** Reserve an unused instance name based on the server name */
+  private synchronized String reserveName(String serverName) {
+    for (int i = 1; ; i++) {
+      String name = serverName + "-" + i;
+      if (!reservedNames.contains(name)
+          && !plugin.getInstanceManager().hasInstance(name)
+          && !plugin.getProxy().getServers().containsKey(name)) {
+        reservedNames.add(name);
+        return name;
+      }
+    }
+  }
+
+  private synchronized void releaseName(String name) {
+    reservedNames.remove(name);
+  }
+
+  /**
+   * Take a started spare out of the pool, turning it into a normal instance that stops when empty
+   *
+   * <p>Once it stops the instance and its folder are deleted, unless the template sets pool.keep in
+   * which case it stays on as an ordinary instance. Spares are marked with MB_POOL_CLAIMED, so any
+   * that stop while the proxy is down are deleted when it next starts.
+   *
+   * @return the spare or null if none are ready
+   */
+  public synchronized Instance claim(String templateName) {
+    for (Instance spare : getSpares(templateName)) {
+      if (spare.getState() != Instance.State.STARTED) {
+        continue;
+      }
+
+      Configuration config = spare.getTemplateConfig();
+      spare.clearTag(POOL_TAG);
+      try {
+        spare.setStopMode(
+            Instance.StopMode.valueOf(config.getString("pool.stop.mode", "INSTANCE_EMPTY")));
+      } catch (IllegalArgumentException e) {
+        spare.setStopMode(Instance.StopMode.INSTANCE_EMPTY);
+      }
+      spare.setStopDelay(config.getInt("pool.stop.delay", 60));
+      spare.setAuto(true);
+
+      if (!config.getBoolean("pool.keep", false)) {
+        spare.setTag(CLAIMED_TAG, "true");
+        spare.getExitFuture().thenRun(() -> discard(spare));
+      }
+      return spare;
+    }
+    return null;
+  }
+
+  /** Delete a claimed spare that has stopped */
+  private void discard(Instance instance) {
+    if (instance.isRunning()) {
+      return;
+    }
+
+    try {
+      plugin.getInstanceManager().delete(instance);
+      System.out.println("[" + instance.getName() + "] Removed claimed spare");
+    } catch (IOException e) {
+      System.err.println(
+          "[" + instance.getName() + "] Unable to remove claimed spare: " + e.getMessage());
+    }
+  }
+
+  /** Send players connecting to a pool's virtual server to a spare */
+  @EventHandler(priority = EventPriority.LOWEST)
+  public void onServerConnectEvent(ServerConnectEvent event) {
+    if (event.isCancelled()) {
+      return;
+    }
+
+    String serverName = event.getTarget().getName();
+    String templateName = pools.get(serverName);
+    if (templateName == null) {
+      return;
+    }
+
+    Instance spare = claim(templateName);
+    ServerInfo target =
+        spare != null ? plugin.getProxy().getServers().get(spare.getName()) : null;
+
+    if (target != null) {
+      System.out.println("[" + spare.getName() + "] Claimed from pool: " + serverName);
+      event.setTarget(target);
+    } else {
+      event.setCancelled(true);
+      event
+          .getPlayer()
+          .sendMessage(
+              new ComponentBuilder("No '")
+                  .color(ChatColor.GRAY)
+                  .append(serverName)
+                  .color(ChatColor.RED)
+                  .append("' servers are ready yet. Please try again shortly.")
+                  .color(ChatColor.GRAY)
+                  .create());
+    }
+
+    plugin.getProxy().getScheduler().runAsync(plugin, () -> fill(templateName));
+  }
+}
@@ -2,23 +2,38 @@ package au.com.grieve.multibridge.managers;
 
 import au.com.grieve.multibridge.MultiBridge;
 import au.com.grieve.multibridge.objects.Template;
-import java.io.FileOutputStream;
+import au.com.grieve.multibridge.util.ArchiveInstaller;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
+/**
+ * Keeps a registry of Templates
+ *
+ * <p>The templates folder is scanned once and then watched, so only templates whose template.yml
+ * changes are read again. Lookups are served from an immutable snapshot.
+ */
 public class TemplateManager {
   private final MultiBridge plugin;
+  private volatile Map<String, Template> templates = Collections.emptyMap();
+  private WatchService watcher;
 
   public TemplateManager(MultiBridge plugin) {
     this.plugin = plugin;
+
+    reload();
+    watch();
   }
 
   /** Return our Template Folder */
@@ -31,78 +46,173 @@ public class TemplateManager {
   }
 
   /**
-   * Return a list of Templates
+   * Return all Templates by name
+   *
+   * @return Unmodifiable snapshot of Templates
+   */
+  public Map<String, Template> getTemplates() {
+    return templates;
+  }
+
+  /** Return a template, or null if there is no such template */
+  public Template getTemplate(String name) {
+    Template template = templates.get(name);
+    if (template != null) {
+      return template;
+    }
+
+    // It may have been created before we were told about it
+    return refresh(name);
+  }
+
+  /**
+   * Rescan the templates folder
    *
    * <p>Loop through all folders under the templates folder and look for ones that contain a
    * template.yml. Read this in to add to the list of templates.
-   *
-   * @return List of Templates
    */
-  public Map<String, Template> getTemplates() {
-    Map<String, Template> templates = new HashMap<>();
+  public synchronized void reload() {
+    Map<String, Template> found = new TreeMap<>();
     try (Stream<Path> paths = Files.list(getTemplateFolder())) {
       paths
           .filter(Files::isDirectory)
+          .filter(p -> !isHidden(p))
           .filter(p -> Files.exists(p.resolve("template.yml")))
           .forEach(
               p -> {
-                Template template = getTemplate(p.getFileName().toString());
+                Template template = load(p);
                 if (template != null) {
-                  templates.put(p.getFileName().toString(), template);
+                  found.put(p.getFileName().toString(), template);
                 }
               });
     } catch (IOException ignored) {
     }
 
-    return templates;
+    templates = Collections.unmodifiableMap(found);
   }
 
-  /** Return a template */
-  public Template getTemplate(String name) {
+  /** Read a single template again, returning it or null if it no longer exists */
+  private synchronized Template refresh(String name) {
     Path templateFolder = getTemplateFolder().resolve(name);
+    Template template =
+        Files.exists(templateFolder.resolve("template.yml")) ? load(templateFolder) : null;
+
+    Map<String, Template> updated = new TreeMap<>(templates);
+    if (template != null) {
+      updated.put(name, template);
+    } else if (Files.isDirectory(templateFolder) && updated.containsKey(name)) {
+      // Most likely part way through being written. Keep what we had
+      return updated.get(name);
+    } else {
+      updated.remove(name);
+    }
+    templates = Collections.unmodifiableMap(updated);
+    return template;
+  }
 
+  /** Hidden folders hold templates still being installed */
+  private static boolean isHidden(Path path) {
+    return path.getFileName().toString().startsWith(".");
+  }
+
+  private Template load(Path templateFolder) {
     try {
       return new Template(templateFolder);
-    } catch (InstantiationException e) {
-      // @TODO maybe throw another exception
+    } catch (InstantiationException | RuntimeException e) {
+      System.err.println("Unable to load template " + templateFolder + ": " + e.getMessage());
       return null;
     }
   }
 
-  /** Download a zipped Template from a URL to a new template folder */
-  public Template downloadTemplate(String name, URL url) throws IOException {
-    Path target = getTemplateFolder().resolve(name);
-    if (Files.exists(target)) {
-      throw new IOException("Folder '" + target.toString() + "' already exists.");
+  /** Start a thread watching the templates folder and each template for changes */
+  private void watch() {
+    try {
+      Files.createDirectories(getTemplateFolder());
+      watcher = getTemplateFolder().getFileSystem().newWatchService();
+      register(getTemplateFolder());
+      try (Stream<Path> paths = Files.list(getTemplateFolder())) {
+        for (Path path :
+            (Iterable<Path>) paths.filter(Files::isDirectory).filter(p -> !isHidden(p))::iterator) {
+          register(path);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Unable to watch templates folder, changes need a reload: " + e);
+      return;
     }
 
-    try (ZipInputStream zipStream = new ZipInputStream(url.openStream())) {
-      byte[] buffer = new byte[2048];
-      ZipEntry entry;
+    Thread thread = new Thread(this::run, "MultiBridge Template Watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
 
-      Files.createDirectories(target);
+  private void register(Path folder) throws IOException {
+    folder.register(
+        watcher,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  private void run() {
+    Path root = getTemplateFolder();
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
 
-      while ((entry = zipStream.getNextEntry()) != null) {
-        Path entryPath = target.resolve(entry.getName());
+      Path folder = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          reload();
+          continue;
+        }
 
-        if (entry.isDirectory()) {
-          Files.createDirectories(entryPath);
-        } else {
-          Files.createDirectories(entryPath.getParent());
-          try (FileOutputStream outputStream =
-              new FileOutputStream(target.resolve(entry.getName()).toFile())) {
-            int len;
-            while ((len = zipStream.read(buffer)) > 0) {
-              outputStream.write(buffer, 0, len);
+        Path changed = (Path) event.context();
+        if (folder.equals(root)) {
+          if (isHidden(changed)) {
+            continue;
+          }
+          // A template folder was added or removed
+          Path templateFolder = root.resolve(changed);
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+              && Files.isDirectory(templateFolder)) {
+            try {
+              register(templateFolder);
+            } catch (IOException e) {
+              System.err.println("Unable to watch " + templateFolder + ": " + e.getMessage());
             }
-          } catch (IOException e) {
-            e.printStackTrace();
-            throw e;
           }
+          refresh(changed.toString());
+        } else if (changed.toString().equals("template.yml")) {
+          refresh(folder.getFileName().toString());
         }
       }
+
+      if (!key.reset() && !folder.equals(root)) {
+        // Template folder has gone
+        refresh(folder.getFileName().toString());
+      }
+    }
+  }
+
+  /** Stop watching for changes */
+  public void shutdown() {
+    if (watcher != null) {
+      try {
+        watcher.close();
+      } catch (IOException ignored) {
+      }
     }
+  }
 
-    return getTemplate(name);
+  /** Download a zip, tar.gz or tar.zst Template from a URL to a new template folder */
+  public Template downloadTemplate(String name, URL url) throws IOException {
+    new ArchiveInstaller(Runtime.getRuntime().availableProcessors())
+        .install(url, getTemplateFolder().resolve(name));
+    return refresh(name);
   }
 }
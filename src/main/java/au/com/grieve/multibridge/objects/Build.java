@@ -0,0 +1,68 @@
+package au.com.grieve.multibridge.objects;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * An instance being created
+ *
+ * <p>Builders report progress through it and should check isCancelled between long steps, so a
+ * cancelled build stops early. Once a cancelled or failed build has stopped its instance folder is
+ * removed.
+ */
+public class Build {
+  private final String instanceName;
+  private final Executor executor;
+  private final Consumer<String> listener;
+  private final CompletableFuture<Instance> future = new CompletableFuture<>();
+  private volatile boolean cancelled = false;
+
+  /**
+   * @param listener receives progress messages. May be null
+   */
+  public Build(String instanceName, Executor executor, Consumer<String> listener) {
+    this.instanceName = instanceName;
+    this.executor = executor;
+    this.listener = listener;
+  }
+
+  public String getInstanceName() {
+    return instanceName;
+  }
+
+  /** Return the executor builders should run blocking work on */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /** Report progress to the console and to whoever started the build */
+  public void progress(String message) {
+    System.out.println("[" + instanceName + "] " + message);
+    if (listener != null) {
+      try {
+        listener.accept(message);
+      } catch (RuntimeException ignored) {
+        // A listener that has gone away, such as a disconnected player, shouldn't fail the build
+      }
+    }
+  }
+
+  /** Ask the build to stop. Returns false if it has already finished */
+  public boolean cancel() {
+    if (future.isDone()) {
+      return false;
+    }
+    cancelled = true;
+    return true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** Completes with the new instance, or exceptionally if the build failed or was cancelled */
+  public CompletableFuture<Instance> getFuture() {
+    return future;
+  }
+}
@@ -1,7 +1,14 @@
 package au.com.grieve.multibridge.objects;
 
+import au.com.grieve.multibridge.interfaces.InstanceStateListener;
 import au.com.grieve.multibridge.managers.InstanceManager;
+import au.com.grieve.multibridge.managers.LogManager;
+import au.com.grieve.multibridge.util.CompiledTemplate;
+import au.com.grieve.multibridge.util.LayeredTags;
+import au.com.grieve.multibridge.util.Processes;
+import au.com.grieve.multibridge.util.RenderCache;
 import au.com.grieve.multibridge.util.SimpleTemplate;
+import au.com.grieve.multibridge.util.TriggerMatcher;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -10,25 +17,35 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.regex.PatternSyntaxException;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.PreLoginEvent;
 import net.md_5.bungee.api.event.ServerConnectEvent;
 import net.md_5.bungee.api.event.ServerDisconnectEvent;
 import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
@@ -59,6 +76,27 @@ public class Instance implements Listener {
     BUSY,
   }
 
+  public enum ReadyMode {
+    LOG,
+    TCP,
+    PING
+  }
+
+  // Allowed state transitions
+  private static final Map<State, Set<State>> TRANSITIONS = new EnumMap<>(State.class);
+
+  static {
+    TRANSITIONS.put(State.STOPPED, EnumSet.of(State.STARTING, State.BUSY));
+    TRANSITIONS.put(State.STARTING, EnumSet.of(State.STARTED, State.STOPPING, State.STOPPED));
+    TRANSITIONS.put(State.STARTED, EnumSet.of(State.STOPPING, State.STOPPED));
+    TRANSITIONS.put(State.STOPPING, EnumSet.of(State.STOPPED));
+    TRANSITIONS.put(State.BUSY, EnumSet.of(State.STOPPED));
+  }
+
+  private static final long READY_PROBE_MIN = 50;
+  private static final long READY_PROBE_MAX = 2000;
+  private static final int READY_PROBE_TIMEOUT = 250;
+
   // Variables
   private InstanceManager manager;
   private Configuration instanceConfig;
@@ -67,7 +105,15 @@ public class Instance implements Listener {
   private String name;
   private Integer port;
   private boolean bungeeRegistered = false;
-  private State state = State.STOPPED;
+  private final AtomicReference<State> state = new AtomicReference<>(State.STOPPED);
+  private final List<InstanceStateListener> stateListeners = new CopyOnWriteArrayList<>();
+  private final LayeredTags tags = new LayeredTags();
+  private RenderCache renderCache;
+  private TriggerMatcher triggers;
+  private volatile Pattern readyPattern;
+  private volatile boolean renderPending = false;
+  private volatile CompletableFuture<Integer> exitFuture = CompletableFuture.completedFuture(0);
+  private ScheduledTask stopTask;
 
   // Async IO
   private Process process;
@@ -75,6 +121,19 @@ public class Instance implements Listener {
   private BufferedWriter writer;
 
   public Instance(InstanceManager manager, Path instanceFolder) throws InstantiationException {
+    this(manager, instanceFolder, null, null);
+  }
+
+  /**
+   * Create an Instance from an already parsed instance.yml and template.yml. Either may be null, in
+   * which case it is loaded from instanceFolder.
+   */
+  public Instance(
+      InstanceManager manager,
+      Path instanceFolder,
+      Configuration instanceConfig,
+      Configuration templateConfig)
+      throws InstantiationException {
     this.manager = manager;
     this.instanceFolder = instanceFolder;
     this.name = instanceFolder.getFileName().toString();
@@ -87,8 +146,25 @@ public class Instance implements Listener {
     // Register ourselves as a Listener
     manager.getPlugin().getProxy().getPluginManager().registerListener(manager.getPlugin(), this);
 
-    loadConfig();
-    name = instanceConfig.getString("name", name);
+    if (instanceConfig != null) {
+      this.instanceConfig = instanceConfig;
+    } else {
+      loadInstanceConfig();
+    }
+    if (templateConfig != null) {
+      this.templateConfig = templateConfig;
+    } else {
+      loadTemplateConfig();
+    }
+    name = this.instanceConfig.getString("name", name);
+    renderCache = new RenderCache(instanceFolder, instanceFolder.resolve(".render-cache.yml"));
+
+    // Tag Layers
+    tags.setSource(LayeredTags.Layer.DEFAULTS, this::getDefaultTags);
+    tags.setSource(
+        LayeredTags.Layer.GLOBAL, () -> manager.getPlugin().getGlobalManager().getTags());
+    tags.setSource(LayeredTags.Layer.INSTANCE, this::getLocalTags);
+    tags.setSource(LayeredTags.Layer.BUILTIN, this::getBuiltinTags);
 
     // Handle StartMode
     if (getAuto()) {
@@ -122,12 +198,18 @@ public class Instance implements Listener {
 
     // Unregister ourself as a Listener
     manager.getPlugin().getProxy().getPluginManager().unregisterListener(this);
+
+    // Write out any unsaved changes
+    manager.getPlugin().getConfigStore().flush(instanceFolder.resolve("instance.yml"));
   }
 
   private void loadConfig() {
-    Path instanceConfigPath = instanceFolder.resolve("instance.yml");
-    Path templateConfigPath = instanceFolder.resolve("template.yml");
+    loadTemplateConfig();
+    loadInstanceConfig();
+  }
 
+  private void loadTemplateConfig() {
+    Path templateConfigPath = instanceFolder.resolve("template.yml");
     try {
       templateConfig =
           ConfigurationProvider.getProvider(YamlConfiguration.class)
@@ -136,6 +218,15 @@ public class Instance implements Listener {
       templateConfig = new Configuration();
     }
 
+    triggers = null;
+  }
+
+  private void loadInstanceConfig() {
+    Path instanceConfigPath = instanceFolder.resolve("instance.yml");
+
+    // Make sure we don't read back a stale file
+    manager.getPlugin().getConfigStore().flush(instanceConfigPath);
+
     try {
       instanceConfig =
           ConfigurationProvider.getProvider(YamlConfiguration.class)
@@ -145,15 +236,28 @@ public class Instance implements Listener {
     }
   }
 
-  /** Save instanceConfig */
-  private void saveConfig() {
-    Path instanceConfigPath = instanceFolder.resolve("instance.yml");
-    try {
-      ConfigurationProvider.getProvider(YamlConfiguration.class)
-          .save(instanceConfig, instanceConfigPath.toFile());
-    } catch (IOException e) {
-      e.printStackTrace();
+  /** Return the Triggers of our Template, compiled on first use */
+  private TriggerMatcher getTriggers() {
+    if (triggers == null) {
+      triggers = new TriggerMatcher(templateConfig.getSection("triggers"));
     }
+    return triggers;
+  }
+
+  /** Change instanceConfig and save it. Locked so the background writer sees whole changes */
+  private void setConfig(String path, Object value) {
+    synchronized (instanceConfig) {
+      instanceConfig.set(path, value);
+    }
+    saveConfig();
+  }
+
+  /** Save instanceConfig. This is written out in the background shortly after */
+  private void saveConfig() {
+    manager
+        .getPlugin()
+        .getConfigStore()
+        .save(instanceFolder.resolve("instance.yml"), instanceConfig);
   }
 
   /** Return Tags set on this Instance */
@@ -173,38 +277,36 @@ public class Instance implements Listener {
     return instanceConfig.getString("tags." + key.toUpperCase());
   }
 
-  /** Get effective tag on this instance */
-  public Map<String, String> getTags() {
+  /** Return Tag defaults from the Template */
+  private Map<String, String> getDefaultTags() {
     Map<String, String> tags = new HashMap<>();
-
-    // Add Defaults from Template
     if (templateConfig.contains("tags.defaults")) {
       for (String k : templateConfig.getSection("tags.defaults").getKeys()) {
         tags.put(k.toUpperCase(), templateConfig.getSection("tags.defaults").getString(k));
       }
     }
+    return tags;
+  }
 
-    // Add Globals. Overrides above
-    for (Map.Entry<String, String> e :
-        manager.getPlugin().getGlobalManager().getTags().entrySet()) {
-      tags.put(e.getKey(), e.getValue());
-    }
-
-    // Add Instance Settings
-    if (instanceConfig.contains("tags")) {
-      for (String k : instanceConfig.getSection("tags").getKeys()) {
-        tags.put(k.toUpperCase(), instanceConfig.getSection("tags").getString(k));
-      }
-    }
-
-    // Refresh Builtins
+  /** Return Builtin Tags */
+  private Map<String, String> getBuiltinTags() {
+    Map<String, String> tags = new HashMap<>();
     tags.put("MB_SERVER_IP", "127.0.0.1");
     tags.put("MB_SERVER_PORT", port == null ? "unknown" : port.toString());
     tags.put("MB_SERVER_NAME", name);
-
     return tags;
   }
 
+  /**
+   * Get effective tags on this instance
+   *
+   * <p>Template defaults are overridden by globals, then by instance settings and lastly by the
+   * builtins. The result is cached until one of those changes.
+   */
+  public Map<String, String> getTags() {
+    return tags.getTags();
+  }
+
   /** Get Tags this instance requires to start */
   public List<String> getRequiredTags() {
     return templateConfig.getStringList("tags.required");
@@ -219,6 +321,7 @@ public class Instance implements Listener {
     // If already in bungee we skip steps
     if (manager.getPlugin().getProxy().getServers().containsKey(name)) {
       port = manager.getPlugin().getProxy().getServers().get(name).getAddress().getPort();
+      tags.invalidate(LayeredTags.Layer.BUILTIN);
       bungeeRegistered = true;
       return;
     }
@@ -228,6 +331,7 @@ public class Instance implements Listener {
     } else {
       port = manager.getPort();
     }
+    tags.invalidate(LayeredTags.Layer.BUILTIN);
     ServerInfo info =
         manager
             .getPlugin()
@@ -250,13 +354,13 @@ public class Instance implements Listener {
     manager.getPlugin().getProxy().getServers().remove(name);
     manager.releasePort(port);
     port = null;
+    tags.invalidate(LayeredTags.Layer.BUILTIN);
     bungeeRegistered = false;
   }
 
   /** Set Auto */
   public void setAuto(Boolean auto) {
-    instanceConfig.set("auto.enabled", auto);
-    saveConfig();
+    setConfig("auto.enabled", auto);
     updateAuto();
   }
 
@@ -291,26 +395,28 @@ public class Instance implements Listener {
 
   /** Start Instance */
   public void start() throws IOException {
-    // Make sure we can start
-    switch (getState()) {
-      case STARTING:
-        throw new IOException("Already Starting");
-      case STARTED:
-        throw new IOException("Already Started");
-      case STOPPING:
-        throw new IOException("Busy Stopping");
-      case BUSY:
-        throw new IOException("Instance is Busy");
-    }
-
-    List<String> missingTags = getMissingRequiredTags();
-    if (missingTags.size() > 0) {
-      throw new IOException("Missing required tags: " + String.join(", ", missingTags));
+    // Update State to STARTING, making sure we can start
+    if (!setState(State.STOPPED, State.STARTING)) {
+      switch (getState()) {
+        case STARTING:
+          throw new IOException("Already Starting");
+        case STARTED:
+          throw new IOException("Already Started");
+        case STOPPING:
+          throw new IOException("Busy Stopping");
+        default:
+          throw new IOException("Instance is Busy");
+      }
     }
 
+    LogManager.InstanceLog opened = null;
     try {
-      // Update State to STARTING
-      setState(State.STARTING);
+      List<String> missingTags = getMissingRequiredTags();
+      if (missingTags.size() > 0) {
+        throw new IOException("Missing required tags: " + String.join(", ", missingTags));
+      }
+
+      exitFuture = new CompletableFuture<>();
 
       // Register with Bungee
       registerBungee();
@@ -326,11 +432,19 @@ public class Instance implements Listener {
               + "] "
               + "Starting Instance by executing: "
               + st.replace(templateConfig.getString("start.execute")));
+      LogManager.InstanceLog log =
+          manager
+              .getPlugin()
+              .getLogManager()
+              .open(name, instanceFolder, getTag("MB_LOG_OUTPUT", "none"));
+      opened = log;
+
       ProcessBuilder builder =
           new ProcessBuilder(st.replace(templateConfig.getString("start.execute")).split(" "));
       builder.redirectErrorStream(true);
       builder.directory(instanceFolder.toFile());
-      process = builder.start();
+      Process process = builder.start();
+      this.process = process;
 
       OutputStream stdin = process.getOutputStream();
       InputStream stdout = process.getInputStream();
@@ -338,6 +452,10 @@ public class Instance implements Listener {
       reader = new BufferedReader(new InputStreamReader(stdout));
       writer = new BufferedWriter(new OutputStreamWriter(stdin));
 
+      // Wait for Server to become ready. Set up before reading output so no lines are missed
+      System.out.println("[" + name + "] " + "Waiting for Instance to become available");
+      waitForReady();
+
       manager
           .getPlugin()
           .getProxy()
@@ -346,47 +464,38 @@ public class Instance implements Listener {
               manager.getPlugin(),
               () -> {
                 try {
-                  // Get list of triggers
-                  Map<Pattern, Configuration> triggers = new HashMap<>();
-                  if (templateConfig.contains("triggers")) {
-                    Configuration section = templateConfig.getSection("triggers");
-                    triggers =
-                        section.getKeys().stream()
-                            .filter(s -> section.getSection(s).getString("match", null) != null)
-                            .collect(
-                                Collectors.toMap(
-                                    s -> Pattern.compile(section.getSection(s).getString("match")),
-                                    section::getSection));
-                  }
+                  TriggerMatcher triggers = getTriggers();
 
                   for (String line; ((line = reader.readLine()) != null); ) {
                     // Check trigger
-                    for (Pattern p : triggers.keySet()) {
-                      Matcher m = p.matcher(line);
-                      while (m.find()) {
-                        System.out.println("[" + name + "] Found Match (" + p.pattern() + ").");
-                        for (String cmd : triggers.get(p).getStringList("commands")) {
-                          for (int i = 1; i <= m.groupCount(); i++) {
-                            cmd = cmd.replace("$" + i, m.group(i));
+                    triggers.match(
+                        line,
+                        (trigger, m) -> {
+                          System.out.println(
+                              "[" + name + "] Found Match (" + trigger.getPattern() + ").");
+                          for (String cmd : trigger.getCommands(m)) {
+                            try {
+                              System.out.println("[" + name + "] Sending Command: " + cmd);
+                              writer.write(cmd + "\n");
+                              writer.flush();
+                            } catch (IOException e) {
+                              break;
+                            }
                           }
+                        });
 
-                          try {
-                            System.out.println("[" + name + "] Sending Command: " + cmd);
-                            writer.write(cmd + "\n");
-                            writer.flush();
-                          } catch (IOException e) {
-                            break;
-                          }
-                        }
-                      }
+                    // Check readiness
+                    Pattern ready = readyPattern;
+                    if (ready != null && ready.matcher(line).find()) {
+                      readyPattern = null;
+                      onReady(ReadyMode.LOG);
                     }
 
-                    if (getTagBoolean("MB_LOG_OUTPUT", true)) {
-                      System.out.println("[" + name + "] " + line);
-                    }
+                    log.append(line);
                   }
                 } catch (IOException ignored) {
                 } finally {
+                  log.close();
                   try {
                     reader.close();
                     reader = null;
@@ -394,134 +503,252 @@ public class Instance implements Listener {
                   }
                 }
 
-                System.out.println("[" + name + "] " + "Instance Shut Down");
+                // Output closing does not mean the process is gone
+                int exitCode;
+                try {
+                  exitCode = process.waitFor();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  Processes.destroy(process, true);
+                  exitCode = -1;
+                }
 
-                process = null;
+                System.out.println(
+                    "[" + name + "] " + "Instance Shut Down (exit code " + exitCode + ")");
+
+                readyPattern = null;
+                this.process = null;
                 reader = null;
                 writer = null;
+                cancelStopTask();
 
                 setState(State.STOPPED);
                 updateAuto();
+                exitFuture.complete(exitCode);
               });
 
-      // Wait for Server to respond to a ping
-      System.out.println("[" + name + "] " + "Waiting for Instance to become available");
+    } catch (Throwable e) {
+      // Clean up if an error occurs, including a process that started but isn't being watched
+      if (opened != null) {
+        opened.close();
+      }
+      Process started = process;
+      if (started != null) {
+        Processes.destroy(started, true);
+      }
+      readyPattern = null;
+      process = null;
+      reader = null;
+      writer = null;
+      setState(State.STOPPED);
+      exitFuture.complete(-1);
+      throw e;
+    }
+  }
 
+  /**
+   * Wait for the instance to become ready using the strategy set by start.ready.mode
+   *
+   * <ul>
+   *   <li>LOG - a console line matches start.ready.match. Falls back to PING if nothing matches
+   *       within start.ready.timeout seconds or the pattern is invalid
+   *   <li>TCP - the port accepts a connection. Tried with backoff starting at 50ms
+   *   <li>PING - the server answers a Bungee ping every 2 seconds
+   * </ul>
+   */
+  private void waitForReady() {
+    ReadyMode mode;
+    try {
+      mode = ReadyMode.valueOf(templateConfig.getString("start.ready.mode", "PING").toUpperCase());
+    } catch (IllegalArgumentException e) {
+      mode = ReadyMode.PING;
+    }
+
+    switch (mode) {
+      case LOG:
+        Pattern pattern;
+        try {
+          pattern = Pattern.compile(templateConfig.getString("start.ready.match", "Done \\("));
+        } catch (PatternSyntaxException e) {
+          System.err.println(
+              "[" + name + "] Invalid start.ready.match, using PING: " + e.getDescription());
+          pingReady();
+          break;
+        }
+        readyPattern = pattern;
+        logReadyTimeout(pattern);
+        break;
+      case TCP:
+        probeReady(READY_PROBE_MIN);
+        break;
+      default:
+        pingReady();
+    }
+  }
+
+  /** Fall back to pinging if pattern has not matched by start.ready.timeout seconds */
+  private void logReadyTimeout(Pattern pattern) {
+    manager
+        .getPlugin()
+        .getProxy()
+        .getScheduler()
+        .schedule(
+            manager.getPlugin(),
+            () -> {
+              if (getState() != State.STARTING || readyPattern != pattern) {
+                return;
+              }
+
+              readyPattern = null;
+              System.err.println(
+                  "[" + name + "] No console line matched start.ready.match, using PING");
+              pingReady();
+            },
+            templateConfig.getInt("start.ready.timeout", 120),
+            TimeUnit.SECONDS);
+  }
+
+  /** Try connecting to our port, backing off exponentially until it accepts */
+  private void probeReady(long delay) {
+    manager
+        .getPlugin()
+        .getProxy()
+        .getScheduler()
+        .schedule(
+            manager.getPlugin(),
+            () -> {
+              if (getState() != State.STARTING || port == null) {
+                return;
+              }
+
+              try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), READY_PROBE_TIMEOUT);
+              } catch (IOException e) {
+                probeReady(Math.min(delay * 2, READY_PROBE_MAX));
+                return;
+              }
+              onReady(ReadyMode.TCP);
+            },
+            delay,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /** Ping the server every 2 seconds until it answers */
+  private void pingReady() {
+    manager
+        .getPlugin()
+        .getProxy()
+        .getScheduler()
+        .schedule(
+            manager.getPlugin(),
+            () -> {
+              ServerInfo server = manager.getPlugin().getProxy().getServers().get(getName());
+
+              if (server == null) {
+                return;
+              }
+
+              server.ping(
+                  (serverPing, ex) -> {
+                    if (getState() != State.STARTING) {
+                      return;
+                    }
+
+                    if (serverPing == null) {
+                      // Failed. Try again if we are still starting
+                      pingReady();
+                      return;
+                    }
+
+                    onReady(ReadyMode.PING);
+                  });
+            },
+            2,
+            TimeUnit.SECONDS);
+  }
+
+  /**
+   * Called once the instance is ready, as detected by mode
+   *
+   * <p>A holdoff of start.ready.holdoff seconds is waited before the instance is marked as
+   * started. If not set it defaults to no holdoff for LOG, as the server has told us it is done,
+   * otherwise to the MB_HOLDOFF tag.
+   */
+  private void onReady(ReadyMode mode) {
+    if (getState() != State.STARTING) {
+      return;
+    }
+
+    int holdoff =
+        templateConfig.getInt(
+            "start.ready.holdoff", mode == ReadyMode.LOG ? 0 : getTagInt("MB_HOLDOFF", 5));
+
+    manager
+        .getPlugin()
+        .getProxy()
+        .getScheduler()
+        .schedule(manager.getPlugin(), this::onStarted, holdoff, TimeUnit.SECONDS);
+  }
+
+  /** Mark the instance as started and schedule any start commands */
+  private void onStarted() {
+    // Instance has started
+    if (!setState(State.STARTING, State.STARTED)) {
+      return;
+    }
+
+    System.out.println("[" + name + "] " + "Instance has started");
+
+    // If we have startup commands lets schedule that now
+    if (templateConfig.getStringList("start.commands").size() > 0) {
+      System.out.println("[" + name + "] Waiting to send Start Commands");
       manager
           .getPlugin()
           .getProxy()
           .getScheduler()
           .schedule(
               manager.getPlugin(),
-              new Runnable() {
-                @Override
-                public void run() {
-                  Runnable pingRunnable = this;
-
-                  ServerInfo server = manager.getPlugin().getProxy().getServers().get(getName());
-
-                  if (server == null) {
-                    return;
+              () -> {
+                if (isRunning()) {
+                  for (String cmd : templateConfig.getStringList("start.commands")) {
+                    try {
+                      System.out.println("[" + name + "] Sending Command: " + cmd);
+                      writer.write(cmd + "\n");
+                      writer.flush();
+                    } catch (IOException e) {
+                      break;
+                    }
                   }
-
-                  server.ping(
-                      (serverPing, ex) -> {
-                        if (getState() == State.STARTING) {
-                          if (serverPing == null) {
-                            // Failed. Schedule to try again if we are still starting
-                            manager
-                                .getPlugin()
-                                .getProxy()
-                                .getScheduler()
-                                .schedule(manager.getPlugin(), pingRunnable, 2, TimeUnit.SECONDS);
-                            return;
-                          }
-
-                          // Schedule holdoff
-                          manager
-                              .getPlugin()
-                              .getProxy()
-                              .getScheduler()
-                              .schedule(
-                                  manager.getPlugin(),
-                                  new Runnable() {
-                                    @Override
-                                    public void run() {
-                                      System.out.println(
-                                          "[" + name + "] " + "Instance has started");
-
-                                      // Instance has started
-                                      setState(State.STARTED);
-
-                                      // If we have startup commands lets schedule that now
-                                      if (templateConfig.getStringList("start.commands").size()
-                                          > 0) {
-                                        System.out.println(
-                                            "[" + name + "] Waiting to send Start Commands");
-                                        manager
-                                            .getPlugin()
-                                            .getProxy()
-                                            .getScheduler()
-                                            .schedule(
-                                                manager.getPlugin(),
-                                                () -> {
-                                                  if (isRunning()) {
-                                                    for (String cmd :
-                                                        templateConfig.getStringList(
-                                                            "start.commands")) {
-                                                      try {
-                                                        System.out.println(
-                                                            "["
-                                                                + name
-                                                                + "] Sending Command: "
-                                                                + cmd);
-                                                        writer.write(cmd + "\n");
-                                                        writer.flush();
-                                                      } catch (IOException e) {
-                                                        break;
-                                                      }
-                                                    }
-                                                  }
-                                                },
-                                                templateConfig.getInt("start.delay", 30),
-                                                TimeUnit.SECONDS);
-                                      }
-                                    }
-                                  },
-                                  getTagInt("MB_HOLDOFF", 5),
-                                  TimeUnit.SECONDS);
-                        }
-                      });
                 }
               },
-              2,
+              templateConfig.getInt("start.delay", 30),
               TimeUnit.SECONDS);
-
-    } catch (Throwable e) {
-      // Clean up if an error occurs
-      process = null;
-      setState(State.STOPPED);
-      throw e;
     }
   }
 
-  /** Stop Instance */
-  public void stop() throws IOException {
-    // Make sure we can stop
-    switch (getState()) {
-      case STOPPING:
-        throw new IOException("Already Stopping");
-      case STOPPED:
-        throw new IOException("Already Stopped");
-      case BUSY:
-        throw new IOException("Instance is Busy");
+  /**
+   * Stop Instance
+   *
+   * <p>The stop commands are sent first. If the process has not exited after stop.delay seconds it
+   * is terminated and if it is still running stop.kill-delay seconds after that it is killed.
+   *
+   * @return a future completed once the process has exited
+   */
+  public CompletableFuture<Void> stop() throws IOException {
+    // Update our State, making sure we can stop
+    CompletableFuture<Integer> exit = exitFuture;
+    if (!setState(State.STOPPING)) {
+      switch (getState()) {
+        case STOPPING:
+          throw new IOException("Already Stopping");
+        case STOPPED:
+          throw new IOException("Already Stopped");
+        default:
+          throw new IOException("Instance is Busy");
+      }
     }
 
     try {
-
-      // Update out State
-      setState(State.STOPPING);
-
       // Send Stop Commands
       if (reader != null && writer != null) {
         if (templateConfig.contains("stop.commands")) {
@@ -537,43 +764,73 @@ public class Instance implements Listener {
         }
       }
 
-      // Maximum time to wait
-      Date date = new Date();
-      long graceTime = date.getTime() + templateConfig.getInt("stop.delay", 30);
-
       System.out.println("[" + name + "] " + "Waiting for Instance to shutdown");
-      manager
-          .getPlugin()
-          .getProxy()
-          .getScheduler()
-          .schedule(
-              manager.getPlugin(),
-              new Runnable() {
-                @Override
-                public void run() {
-                  if (getState() == State.STOPPING) {
-                    if (date.getTime() < graceTime) {
-                      manager
-                          .getPlugin()
-                          .getProxy()
-                          .getScheduler()
-                          .schedule(manager.getPlugin(), this, 2, TimeUnit.SECONDS);
-                      return;
-                    }
-                    System.err.print("[" + name + "] " + "Murdering Instance");
-                    process.destroy();
-                    return;
-                  }
-                  System.out.println("[" + name + "] " + "Instance Cleanly Shut Down");
-                }
-              },
-              2,
-              TimeUnit.SECONDS);
+      scheduleStop(false, templateConfig.getInt("stop.delay", 30));
 
     } catch (Throwable e) {
       setState(State.STOPPED);
       throw e;
     }
+
+    return exit.thenApply(code -> null);
+  }
+
+  /** Return a future completed with the exit code once the current process exits */
+  public CompletableFuture<Integer> getExitFuture() {
+    return exitFuture;
+  }
+
+  /**
+   * Kill the process immediately without waiting for it to stop
+   *
+   * @return a future completed once the process has exited
+   */
+  public CompletableFuture<Void> kill() {
+    Process current = process;
+    if (current != null) {
+      cancelStopTask();
+      System.err.println("[" + name + "] " + "Killing Instance");
+      Processes.destroy(current, true);
+    }
+    return exitFuture.thenApply(code -> null);
+  }
+
+  /** Terminate, or if force is set kill, the process if it is still running after delay seconds */
+  private synchronized void scheduleStop(boolean force, long delay) {
+    cancelStopTask();
+    stopTask =
+        manager
+            .getPlugin()
+            .getProxy()
+            .getScheduler()
+            .schedule(
+                manager.getPlugin(),
+                () -> {
+                  Process current = process;
+                  if (current == null || exitFuture.isDone()) {
+                    return;
+                  }
+
+                  if (force) {
+                    System.err.println("[" + name + "] " + "Killing Instance");
+                    Processes.destroy(current, true);
+                    return;
+                  }
+
+                  System.err.println("[" + name + "] " + "Terminating Instance");
+                  Processes.destroy(current, false);
+                  scheduleStop(true, templateConfig.getInt("stop.kill-delay", 10));
+                },
+                delay,
+                TimeUnit.SECONDS);
+  }
+
+  /** Stop waiting to terminate the process */
+  private synchronized void cancelStopTask() {
+    if (stopTask != null) {
+      stopTask.cancel();
+      stopTask = null;
+    }
   }
 
   /** Update Template files with placeholder values */
@@ -593,15 +850,19 @@ public class Instance implements Listener {
       setTag("MB_FIRST_RUN", "true");
     }
 
-    // Update Dynamics
+    // Update Dynamics. Only files whose template or tags have changed are written
+    renderPending = false;
     for (String fileName : templateConfig.getStringList("templates.dynamic")) {
       try {
         st.replace(
-            instanceFolder.resolve(fileName + ".template"), instanceFolder.resolve(fileName));
+            instanceFolder.resolve(fileName + ".template"),
+            instanceFolder.resolve(fileName),
+            renderCache);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
+    renderCache.save();
   }
 
   /** Remove Instance */
@@ -622,16 +883,12 @@ public class Instance implements Listener {
 
   @SuppressWarnings("WeakerAccess")
   public String getTag(String key, String def) {
-    return getTags().getOrDefault(key, def);
+    return tags.get(key, def);
   }
 
   @SuppressWarnings("WeakerAccess")
   public int getTagInt(String key, int def) {
-    try {
-      return Integer.parseInt(getTag(key, String.valueOf(def)));
-    } catch (NumberFormatException e) {
-      return def;
-    }
+    return tags.getInt(key, def);
   }
 
   @SuppressWarnings({"WeakerAccess", "unused"})
@@ -646,17 +903,60 @@ public class Instance implements Listener {
 
   @SuppressWarnings("WeakerAccess")
   public boolean getTagBoolean(String key, boolean def) {
-    return Boolean.parseBoolean(getTag(key, String.valueOf(def)));
+    return tags.getBoolean(key, def);
   }
 
   public void setTag(String key, String value) {
-    instanceConfig.set("tags." + key, value);
-    saveConfig();
+    setConfig("tags." + key, value);
+    tags.invalidate(LayeredTags.Layer.INSTANCE);
   }
 
   public void clearTag(String key) {
-    instanceConfig.set("tags." + key, null);
-    saveConfig();
+    setConfig("tags." + key, null);
+    tags.invalidate(LayeredTags.Layer.INSTANCE);
+  }
+
+  /**
+   * Called when a global tag has been set or cleared
+   *
+   * <p>Only the cached global layer is dropped. If a running instance rendered any of its files
+   * using the tag it is flagged as needing a restart to pick up the change.
+   */
+  public void onGlobalTagChanged(String key) {
+    tags.invalidate(LayeredTags.Layer.GLOBAL);
+
+    if (isRunning() && rendersTag(key)) {
+      renderPending = true;
+      System.out.println("[" + name + "] Global tag " + key + " changed. Restart to apply");
+    }
+  }
+
+  /** Return true if a rendered file uses tag, directly or through the value of another tag */
+  private boolean rendersTag(String key) {
+    key = key.toUpperCase();
+    Map<String, String> current = getTags();
+    Deque<String> pending = new ArrayDeque<>(renderCache.getTags());
+    Set<String> seen = new HashSet<>();
+    while (!pending.isEmpty()) {
+      String tag = pending.pop();
+      if (!seen.add(tag)) {
+        continue;
+      }
+      if (tag.equals(key)) {
+        return true;
+      }
+
+      String value = current.get(tag);
+      if (value != null) {
+        pending.addAll(CompiledTemplate.compile(value).getVariables());
+      }
+    }
+    return false;
+  }
+
+  /** Return true if tags used by the rendered files have changed since the instance started */
+  public boolean isRenderPending() {
+    return renderPending;
   }
 
   /** Return Startup Type */
@@ -669,8 +969,7 @@ public class Instance implements Listener {
   }
 
   public void setStartMode(StartMode mode) {
-    instanceConfig.set("auto.start.mode", mode.toString());
-    saveConfig();
+    setConfig("auto.start.mode", mode.toString());
   }
 
   /** Return Startup Delay */
@@ -679,8 +978,7 @@ public class Instance implements Listener {
   }
 
   public void setStartDelay(int delay) {
-    instanceConfig.set("auto.start.delay", delay);
-    saveConfig();
+    setConfig("auto.start.delay", delay);
   }
 
   /** Get Stop Type */
@@ -693,8 +991,7 @@ public class Instance implements Listener {
   }
 
   public void setStopMode(StopMode mode) {
-    instanceConfig.set("auto.stop.mode", mode.toString());
-    saveConfig();
+    setConfig("auto.stop.mode", mode.toString());
   }
 
   /** Get Stop Delay */
@@ -703,8 +1000,7 @@ public class Instance implements Listener {
   }
 
   public void setStopDelay(int delay) {
-    instanceConfig.set("auto.stop.delay", delay);
-    saveConfig();
+    setConfig("auto.stop.delay", delay);
   }
 
   private List<String> getMissingRequiredTags() {
@@ -724,11 +1020,62 @@ public class Instance implements Listener {
 
   /** Get State */
   public State getState() {
-    return state;
+    return state.get();
+  }
+
+  /**
+   * Mark a stopped instance BUSY so it can't be started while something else works on it
+   *
+   * @throws IOException if the instance isn't stopped
+   */
+  public void markBusy() throws IOException {
+    if (!setState(State.STOPPED, State.BUSY)) {
+      throw new IOException("Instance is " + getState().toString().toLowerCase());
+    }
+  }
+
+  /** Return a BUSY instance to STOPPED */
+  public void clearBusy() {
+    setState(State.BUSY, State.STOPPED);
   }
 
-  private void setState(State state) {
-    this.state = state;
+  /** Move to state if allowed from the current one, returning false if not */
+  private boolean setState(State to) {
+    while (true) {
+      State from = state.get();
+      if (!TRANSITIONS.get(from).contains(to)) {
+        return false;
+      }
+      if (setState(from, to)) {
+        return true;
+      }
+    }
+  }
+
+  /** Move from one state to another if we are still in from, returning false if not */
+  private boolean setState(State from, State to) {
+    if (!TRANSITIONS.get(from).contains(to) || !state.compareAndSet(from, to)) {
+      return false;
+    }
+
+    for (InstanceStateListener listener : stateListeners) {
+      try {
+        listener.onStateChange(this, from, to);
+      } catch (RuntimeException e) {
+        System.err.println("[" + name + "] State listener failed: " + e.getMessage());
+      }
+    }
+    return true;
+  }
+
+  /** Be notified whenever this instance changes state */
+  public void addStateListener(InstanceStateListener listener) {
+    stateListeners.add(listener);
+  }
+
+  /** Stop being notified of state changes, returning false if listener was not registered */
+  public boolean removeStateListener(InstanceStateListener listener) {
+    return stateListeners.remove(listener);
   }
 
   @SuppressWarnings("unused")
@@ -747,6 +1094,7 @@ public class Instance implements Listener {
   /** Reload Config */
   public void reloadConfig() {
     loadConfig();
+    tags.invalidate();
   }
 
   /** Check if we need to start before a player logs into the server */
@@ -805,48 +1153,40 @@ public class Instance implements Listener {
             System.out.println("[" + name + "] " + "Failed to Start: " + e.getMessage());
             return;
           }
-
-          // Get current time
-          Date date = new Date();
-          long startTime = date.getTime();
-
-          // Wait for Server to be up
-          manager
-              .getPlugin()
-              .getProxy()
-              .getScheduler()
-              .schedule(
-                  manager.getPlugin(),
-                  new Runnable() {
-                    @Override
-                    public void run() {
-                      switch (getState()) {
-                        case STARTING:
-                          if (date.getTime() - startTime > (getStartDelay() * 1000)) {
-                            System.err.println(
-                                "[" + name + "] " + "Failed to connect to Instance: Timed out");
-                            break;
-                          }
-                          manager
-                              .getPlugin()
-                              .getProxy()
-                              .getScheduler()
-                              .schedule(manager.getPlugin(), this, 2, TimeUnit.SECONDS);
-                          break;
-                        case STARTED:
-                          // Send player to Server
-                          event.getPlayer().connect(event.getTarget());
-                          break;
-                      }
-                    }
-                  },
-                  2,
-                  TimeUnit.SECONDS);
         }
+
+        connectWhenStarted(event.getPlayer(), event.getTarget());
       }
     }
   }
 
+  /** Send player to target once this instance has started */
+  private void connectWhenStarted(ProxiedPlayer player, ServerInfo target) {
+    InstanceStateListener listener =
+        new InstanceStateListener() {
+          @Override
+          public void onStateChange(Instance instance, State from, State to) {
+            switch (to) {
+              case STARTED:
+                if (removeStateListener(this)) {
+                  player.connect(target);
+                }
+                break;
+              case STOPPING:
+              case STOPPED:
+                removeStateListener(this);
+                break;
+            }
+          }
+        };
+    addStateListener(listener);
+
+    // We may have started before the listener was added
+    if (getState() == State.STARTED && removeStateListener(listener)) {
+      player.connect(target);
+    }
+  }
+
   /** Check if the server is empty to shut down */
   @EventHandler
   public void onPlayerDisconnectEvent(PlayerDisconnectEvent event) {
@@ -6,27 +6,32 @@ import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
 
+/**
+ * A Template as it was when its template.yml was read
+ *
+ * <p>Templates are never changed once created. When template.yml changes a new Template replaces
+ * this one, so its config must be treated as read-only.
+ */
 public class Template {
   private final Path templateFolder;
-  private Configuration templateConfig;
+  private final Configuration templateConfig;
 
   public Template(Path templateFolder) throws InstantiationException {
     this.templateFolder = templateFolder;
 
     try {
-      loadConfig();
+      templateConfig = loadConfig(templateFolder);
     } catch (IOException e) {
       throw new InstantiationException(e.getMessage());
     }
   }
 
-  public void loadConfig() throws IOException {
+  private static Configuration loadConfig(Path templateFolder) throws IOException {
     Path templateConfigPath = templateFolder.resolve("template.yml");
 
     try {
-      templateConfig =
-          ConfigurationProvider.getProvider(YamlConfiguration.class)
-              .load(templateConfigPath.toFile());
+      return ConfigurationProvider.getProvider(YamlConfiguration.class)
+          .load(templateConfigPath.toFile());
     } catch (IOException e) {
       throw new IOException(
           "Cannot load template.yml. Is " + templateFolder.toString() + " a template?");
@@ -36,4 +41,8 @@ public class Template {
   public Path getTemplateFolder() {
     return templateFolder;
   }
+
+  public Configuration getTemplateConfig() {
+    return templateConfig;
+  }
 }
@@ -8,39 +8,112 @@ package au.com.grieve.multibridge.plugins.Vanilla;
 
 import au.com.grieve.multibridge.MultiBridge;
 import au.com.grieve.multibridge.interfaces.InstanceBuilder;
+import au.com.grieve.multibridge.objects.Build;
 import au.com.grieve.multibridge.objects.Instance;
+import au.com.grieve.multibridge.plugins.Vanilla.util.ManifestCache;
 import au.com.grieve.multibridge.plugins.Vanilla.util.Version;
+import au.com.grieve.multibridge.util.ArtifactStore;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonStreamParser;
+import com.google.gson.stream.JsonReader;
 import java.io.BufferedReader;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.net.URLClassLoader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Date;
+import java.nio.file.Paths;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
 import net.md_5.bungee.config.Configuration;
 
 public class VanillaBuilder implements InstanceBuilder {
+  private static final String VERSION_MANIFEST_URL =
+      "https://launchermeta.mojang.com/mc/game/version_manifest.json";
+  private static final String PATCH_MANIFEST_URL =
+      "https://raw.githubusercontent.com/ME1312/VanillaCord/master/version_manifest.json";
 
   private final MultiBridge plugin;
+  private final ManifestCache manifests;
+  private final ArtifactStore artifacts;
+  private final Path cacheFolder;
+  private final boolean inProcess;
+  private final boolean fallback;
+  private final ExecutorService patcher;
 
   public VanillaBuilder(MultiBridge plugin) {
     this.plugin = plugin;
+
+    Configuration config = plugin.getConfig();
+    manifests =
+        new ManifestCache(
+            plugin.getDataFolder().toPath().resolve("cache").resolve("manifests"),
+            TimeUnit.SECONDS.toMillis(config.getLong("vanilla.manifest-ttl", 3600)),
+            config.getBoolean("vanilla.offline", false));
+    artifacts = plugin.getCacheManager().getArtifacts();
+    cacheFolder = plugin.getDataFolder().toPath().resolve("cache");
+
+    inProcess = config.getString("vanilla.patcher", "process").equalsIgnoreCase("in-process");
+    fallback = config.getBoolean("vanilla.patcher-fallback", true);
+
+    // VanillaCord works in the current directory so only one may run in-process at a time
+    patcher =
+        Executors.newSingleThreadExecutor(
+            r -> {
+              Thread thread = new Thread(r, "MultiBridge VanillaCord");
+              thread.setDaemon(true);
+              return thread;
+            });
   }
 
   /** Called when an instance is first built. */
   public void build(Instance instance) throws IOException {
+    build(
+        instance,
+        message -> System.out.println("[VanillaBuilder] [" + instance.getName() + "] " + message),
+        () -> false);
+  }
+
+  /** Build on the build's executor, reporting progress to whoever started it */
+  @Override
+  public CompletionStage<Void> buildAsync(Instance instance, Build build) {
+    return CompletableFuture.runAsync(
+        () -> {
+          try {
+            build(instance, build::progress, build::isCancelled);
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        },
+        build.getExecutor());
+  }
+
+  private void build(Instance instance, Consumer<String> progress, BooleanSupplier cancelled)
+      throws IOException {
     Configuration config = instance.getTemplateConfig();
 
     if (!config.contains("build.vanilla")) {
@@ -50,84 +123,142 @@ public class VanillaBuilder implements InstanceBuilder {
     String version = config.getString("build.vanilla.version", "latest");
     String output = config.getString("build.vanilla.output", "server.jar");
 
-    Path cacheFolder = plugin.getDataFolder().toPath().resolve("cache");
-    Path workingFolder = cacheFolder.resolve("temp-" + String.valueOf(new Date().getTime()));
-    Files.createDirectories(workingFolder);
-
-    System.out.println(
-        "[VanillaBuilder] [" + instance.getName() + "] Loading Vanilla Manifest for: " + version);
-    JsonObject vanillaManifest = getVanillaManifest(version);
-
-    assert vanillaManifest != null;
+    // Nothing needs fetching if we already have this exact version patched
     Path patchedServerPath =
-        cacheFolder.resolve(
-            "vanilla-patched-" + vanillaManifest.get("id").getAsString() + ".server.jar");
+        version.equalsIgnoreCase("latest") ? null : artifacts.get("vanilla-patched-" + version);
+
+    // Counted once for the whole build, a hit unless this build had to patch
+    AtomicBoolean patched = new AtomicBoolean();
+    if (patchedServerPath == null) {
+      progress.accept("Loading Vanilla Manifest for: " + version);
+      JsonObject vanillaManifest = getVanillaManifest(version);
+      checkCancelled(cancelled);
+      String id = vanillaManifest.get("id").getAsString();
+
+      // Patch vanilla unless it is already patched. Anyone else building the same version at
+      // the same time waits for us rather than doing it again, and takes over if we are cancelled.
+      // Only whoever does the work reports its steps, so say what we are waiting on first
+      progress.accept("Preparing Vanilla Server " + id);
+      patchedServerPath =
+          artifacts.get(
+              "vanilla-patched-" + id,
+              () -> {
+                patched.set(true);
+                JsonObject server =
+                    vanillaManifest.getAsJsonObject("downloads").getAsJsonObject("server");
+
+                // Downloaded unless we already have a copy matching the manifest
+                progress.accept("Fetching Vanilla Server " + id);
+                Path vanillaServerPath =
+                    artifacts.download(
+                        "vanilla-" + id,
+                        new URL(server.get("url").getAsString()),
+                        server.get("sha1").getAsString(),
+                        cancelled);
+
+                checkCancelled(cancelled);
+                progress.accept("Patching Vanilla Server " + id);
+                return patchServer(id, vanillaServerPath, cancelled);
+              });
+    }
 
-    // If the patched server does not exist we need to patch vanilla
-    if (!Files.exists(patchedServerPath)) {
-      Path vanillaServerPath =
-          cacheFolder.resolve(
-              "original-" + vanillaManifest.get("id").getAsString() + ".server.jar");
+    artifacts.recordUse(!patched.get());
 
-      // If vanillaServer does not exist we download it first
-      try {
-        if (!Files.exists(vanillaServerPath)
-            || sha1(vanillaServerPath).equals(vanillaManifest.get("sha1").getAsString())) {
-          System.out.println(
-              "[VanillaBuilder] [" + instance.getName() + "] Downloading Vanilla Server");
-          downloadFile(
-              new URL(
-                  vanillaManifest
-                      .getAsJsonObject("downloads")
-                      .getAsJsonObject("server")
-                      .get("url")
-                      .getAsString()),
-              vanillaServerPath);
-        }
-      } catch (NoSuchAlgorithmException e) {
-        throw new IOException("Can't find SHA1 algorithm");
-      }
+    // Link shared file to output
+    checkCancelled(cancelled);
+    artifacts.link(patchedServerPath, instance.getInstanceFolder().resolve(output));
+    progress.accept("Vanilla Server ready");
+  }
 
-      // Patch vanilla
-      patchServer(cacheFolder, workingFolder, version, vanillaServerPath, patchedServerPath);
+  private static void checkCancelled(BooleanSupplier cancelled) {
+    if (cancelled.getAsBoolean()) {
+      throw new CancellationException("Cancelled");
     }
-
-    // Copy file to output
-    Files.copy(patchedServerPath, instance.getInstanceFolder().resolve(output));
-    System.out.println("[VanillaBuilder] [" + instance.getName() + "] Finished");
   }
 
   /** Get Vanilla Server Manifest */
   private JsonObject getVanillaManifest(String version) throws IOException {
-    JsonObject versionManifest =
-        getJson(new URL("https://launchermeta.mojang.com/mc/game/version_manifest.json"));
+    Path versionManifest = manifests.get(new URL(VERSION_MANIFEST_URL));
 
-    if (versionManifest == null) {
-      throw new IOException("Unable to load Version Manifest");
+    if (version.equalsIgnoreCase("latest")) {
+      version = findLatestRelease(versionManifest);
     }
 
-    if (version.equalsIgnoreCase("latest")) {
-      version = versionManifest.getAsJsonObject("latest").get("release").getAsString();
+    String url = findVersionUrl(versionManifest, version);
+    if (url == null) {
+      throw new IOException("Unknown Minecraft version: " + version);
     }
 
-    for (JsonElement element : versionManifest.getAsJsonArray("versions")) {
-      JsonObject v = element.getAsJsonObject();
-      if (v.get("id").getAsString().equalsIgnoreCase(version)) {
-        return getJson(new URL(v.get("url").getAsString()));
+    // Each version's manifest URL contains its hash so it never changes
+    return getJson(manifests.get(new URL(url), ManifestCache.FOREVER));
+  }
+
+  /** Return the latest release listed in the version manifest, without reading the versions */
+  private String findLatestRelease(Path versionManifest) throws IOException {
+    try (JsonReader reader = openJson(versionManifest)) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (!reader.nextName().equals("latest")) {
+          reader.skipValue();
+          continue;
+        }
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if (reader.nextName().equals("release")) {
+            return reader.nextString();
+          }
+          reader.skipValue();
+        }
+        reader.endObject();
       }
     }
+    throw new IOException("Version Manifest has no latest release");
+  }
+
+  /** Stream through the version manifest for the manifest URL of version */
+  private String findVersionUrl(Path versionManifest, String version) throws IOException {
+    try (JsonReader reader = openJson(versionManifest)) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (!reader.nextName().equals("versions")) {
+          reader.skipValue();
+          continue;
+        }
 
+        reader.beginArray();
+        while (reader.hasNext()) {
+          String id = null;
+          String url = null;
+          reader.beginObject();
+          while (reader.hasNext()) {
+            switch (reader.nextName()) {
+              case "id":
+                id = reader.nextString();
+                break;
+              case "url":
+                url = reader.nextString();
+                break;
+              default:
+                reader.skipValue();
+            }
+          }
+          reader.endObject();
+
+          if (version.equalsIgnoreCase(id)) {
+            return url;
+          }
+        }
+        reader.endArray();
+      }
+    }
     return null;
   }
 
-  /** Patch the Vanilla File to work behind BungeeCord. */
-  private void patchServer(
-      Path cacheFolder, Path workingFolder, String version, Path input, Path output)
+  /** Patch the Vanilla File to work behind BungeeCord, returning the stored patched file */
+  private Path patchServer(String version, Path input, BooleanSupplier cancelled)
       throws IOException, IllegalArgumentException {
-    JsonObject patchVersionManifest =
-        getJson(
-            new URL(
-                "https://raw.githubusercontent.com/ME1312/VanillaCord/master/version_manifest.json"));
+    JsonObject patchVersionManifest = getJson(manifests.get(new URL(PATCH_MANIFEST_URL)));
 
     JsonObject patchObject = null;
     Version patchVersion = null;
@@ -145,92 +276,216 @@ public class VanillaBuilder implements InstanceBuilder {
     if (patchVersion == null)
       throw new IllegalArgumentException("Could not find patches for: " + version);
 
-    JsonObject patchProfile = getJson(new URL(patchObject.get("url").getAsString()));
+    JsonObject patchProfile = getJson(manifests.get(new URL(patchObject.get("url").getAsString())));
     assert patchProfile != null;
     patchVersion = new Version(patchProfile.get("id").getAsString());
 
     // Download VanillaCord
-    Path patcherFile = cacheFolder.resolve("vanillacord-" + patchVersion + ".jar");
-    if (!Files.exists(patcherFile)) {
-      Path tempPatcherFile = workingFolder.resolve("vanillacord-" + patchVersion + ".jar");
-      downloadFile(
-          new URL(patchProfile.getAsJsonObject("download").get("url").getAsString()),
-          tempPatcherFile);
-      Files.move(tempPatcherFile, patcherFile);
-    }
-
-    // Copy Original Server to location expected by VanillaCord
-    Files.createDirectory(workingFolder.resolve("in"));
-    Files.createDirectory(workingFolder.resolve("out"));
-    Files.copy(patcherFile, workingFolder.resolve("vanillacord.jar"));
-    Files.copy(input, workingFolder.resolve("in").resolve(version + ".jar"));
-
-    // Execute
-    ProcessBuilder builder = new ProcessBuilder("java", "-jar", "vanillacord.jar", version);
-    builder.redirectErrorStream(true);
-    builder.directory(workingFolder.toFile());
-    Process process = builder.start();
-
-    //        OutputStream stdin = process.getOutputStream();
-    InputStream stdout = process.getInputStream();
-
-    try (BufferedReader reader = new BufferedReader(new InputStreamReader(stdout))) {
-      //            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stdin));
-      for (String line; ((line = reader.readLine()) != null); ) {
-        System.out.println(line);
-      }
-    } catch (IOException ignored) {
+    Path patcherFile =
+        artifacts.download(
+            "vanillacord-" + patchVersion,
+            new URL(patchProfile.getAsJsonObject("download").get("url").getAsString()),
+            null,
+            cancelled);
+    checkCancelled(cancelled);
+
+    if (!inProcess) {
+      return patchInSubprocess(patcherFile, version, input);
     }
 
-    // Copy Patched file to output
-    Files.copy(workingFolder.resolve("out").resolve(version + "-bungee.jar"), output);
+    try {
+      return patchInProcess(patcherFile, version, input);
+    } catch (IOException e) {
+      if (!fallback) {
+        throw e;
+      }
+      System.err.println(
+          "[VanillaBuilder] Patching in-process failed, running VanillaCord as a process: "
+              + e.getMessage());
+      return patchInSubprocess(patcherFile, version, input);
+    }
   }
 
-  /** Download a file */
-  private void downloadFile(URL input, Path output) throws IOException {
+  /**
+   * Run VanillaCord inside the proxy in its own class loader
+   *
+   * <p>VanillaCord reads in/ and writes out/ relative to the working directory, which can't be
+   * changed from within the JVM, so the input is linked into the proxy's working directory and
+   * patches are run one at a time on the patcher thread. Both folders are created for the patch and
+   * removed afterwards. If either already exists nothing is touched and the patch fails, so the
+   * caller can fall back to a separate process.
+   */
+  private Path patchInProcess(Path patcherFile, String version, Path input) throws IOException {
+    String mainClass;
+    try (JarFile jar = new JarFile(patcherFile.toFile())) {
+      mainClass =
+          jar.getManifest() != null
+              ? jar.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS)
+              : null;
+    }
+    if (mainClass == null) {
+      throw new IOException("No Main-Class in " + patcherFile);
+    }
+
+    Path workingFolder = Paths.get("").toAbsolutePath();
+    Path in = workingFolder.resolve("in").resolve(version + ".jar");
+    Path out = workingFolder.resolve("out").resolve(version + "-bungee.jar");
+
+    Future<Path> result =
+        patcher.submit(
+            () -> {
+              // Never touch folders in the proxy's directory that we didn't create
+              try {
+                Files.createDirectory(in.getParent());
+              } catch (FileAlreadyExistsException e) {
+                throw new IOException(in.getParent() + " already exists");
+              }
+              try {
+                Files.createDirectory(out.getParent());
+              } catch (FileAlreadyExistsException e) {
+                Files.delete(in.getParent());
+                throw new IOException(out.getParent() + " already exists");
+              }
+
+              Path patched;
+              try {
+                artifacts.link(input, in);
+                runVanillaCord(patcherFile, mainClass, version);
+                if (!Files.exists(out)) {
+                  throw new IOException("VanillaCord did not produce " + out.getFileName());
+                }
+                patched = artifacts.put("vanilla-patched-" + version, out);
+              } catch (Throwable e) {
+                removeWorkingFolders(e, in.getParent(), out.getParent());
+                throw e;
+              }
+
+              // VanillaCord may have left more behind, which must not undo a good patch
+              removeWorkingFolders(null, in.getParent(), out.getParent());
+              return patched;
+            });
+
     try {
-      ReadableByteChannel readableByteChannel = Channels.newChannel(input.openStream());
-      FileOutputStream fileOutputStream = new FileOutputStream(output.toFile());
-      FileChannel fileChannel = fileOutputStream.getChannel();
-      fileChannel.transferFrom(readableByteChannel, 0, Long.MAX_VALUE);
-    } catch (Throwable e) {
-      Files.delete(output);
-      throw e;
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for VanillaCord");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("VanillaCord failed: " + e.getCause(), e.getCause());
+    }
+  }
+
+  /** Run VanillaCord's main method in a class loader of its own */
+  private static void runVanillaCord(Path patcherFile, String mainClass, String version)
+      throws IOException, ReflectiveOperationException {
+    Thread thread = Thread.currentThread();
+    ClassLoader previous = thread.getContextClassLoader();
+    // Parent is the platform loader so VanillaCord can't see proxy classes, or them it
+    try (URLClassLoader loader =
+        new URLClassLoader(
+            new URL[] {patcherFile.toUri().toURL()},
+            ClassLoader.getSystemClassLoader().getParent())) {
+      thread.setContextClassLoader(loader);
+      Class.forName(mainClass, true, loader)
+          .getMethod("main", String[].class)
+          .invoke(null, (Object) new String[] {version});
+    } catch (InvocationTargetException e) {
+      throw new IOException("VanillaCord failed: " + e.getCause(), e.getCause());
+    } finally {
+      thread.setContextClassLoader(previous);
     }
   }
 
   /**
-   * Calculate the SHA1 of a file
-   *
-   * @param path File to check
-   * @return SHA-1 Checksum
+   * Delete patching folders and everything in them. Failures are added to error if there is one,
+   * otherwise only reported, so they never replace the outcome of the patch
    */
-  private String sha1(Path path) throws IOException, NoSuchAlgorithmException {
-    MessageDigest sha1;
-    sha1 = MessageDigest.getInstance("SHA-1");
-    try (InputStream input = Files.newInputStream(path)) {
-      byte[] buffer = new byte[8192];
-      int len;
-      while ((len = input.read(buffer)) > 0) {
-        sha1.update(buffer, 0, len);
+  private static void removeWorkingFolders(Throwable error, Path... folders) {
+    for (Path folder : folders) {
+      if (!Files.exists(folder)) {
+        continue;
+      }
+      try (Stream<Path> walk = Files.walk(folder)) {
+        for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+          Files.deleteIfExists(path);
+        }
+      } catch (IOException | UncheckedIOException e) {
+        if (error != null) {
+          error.addSuppressed(e);
+        } else {
+          System.err.println("[VanillaBuilder] Unable to remove " + folder + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /** Run VanillaCord as a separate java process in its own working folder */
+  private Path patchInSubprocess(Path patcherFile, String version, Path input) throws IOException {
+    Files.createDirectories(cacheFolder);
+    Path workingFolder = Files.createTempDirectory(cacheFolder, "temp-");
+    try {
+      // Link Original Server to location expected by VanillaCord
+      Files.createDirectory(workingFolder.resolve("in"));
+      Files.createDirectory(workingFolder.resolve("out"));
+      artifacts.link(patcherFile, workingFolder.resolve("vanillacord.jar"));
+      artifacts.link(input, workingFolder.resolve("in").resolve(version + ".jar"));
+
+      // Execute
+      String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+      ProcessBuilder builder = new ProcessBuilder(java, "-jar", "vanillacord.jar", version);
+      builder.redirectErrorStream(true);
+      builder.directory(workingFolder.toFile());
+      Process process = builder.start();
+
+      try (BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+        for (String line; ((line = reader.readLine()) != null); ) {
+          System.out.println("[VanillaBuilder] " + line);
+        }
       }
 
-      byte[] digest = sha1.digest();
-      StringBuilder output = new StringBuilder();
-      for (byte aDigest : digest) {
-        output.append(Integer.toString((aDigest & 0xff) + 0x100, 16).substring(1));
+      int exitCode;
+      try {
+        exitCode = process.waitFor();
+      } catch (InterruptedException e) {
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for VanillaCord");
       }
-      return output.toString();
+
+      Path patched = workingFolder.resolve("out").resolve(version + "-bungee.jar");
+      if (exitCode != 0 || !Files.exists(patched)) {
+        throw new IOException("VanillaCord failed with exit code " + exitCode);
+      }
+
+      // Store Patched file
+      Path stored = artifacts.put("vanilla-patched-" + version, patched);
+      removeWorkingFolders(null, workingFolder);
+      return stored;
+    } catch (Throwable e) {
+      removeWorkingFolders(e, workingFolder);
+      throw e;
     }
   }
 
-  /** Return a JSON Object for a URL */
-  private JsonObject getJson(URL url) throws IOException {
-    JsonStreamParser jsonParser =
-        new JsonStreamParser(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8));
-    if (jsonParser.hasNext()) {
-      return jsonParser.next().getAsJsonObject();
+  /** Return a JSON Object for a file */
+  private JsonObject getJson(Path file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      JsonStreamParser jsonParser = new JsonStreamParser(reader);
+      if (jsonParser.hasNext()) {
+        return jsonParser.next().getAsJsonObject();
+      }
+    } catch (JsonParseException e) {
+      throw new IOException("Invalid JSON in " + file + ": " + e.getMessage());
     }
     return null;
   }
+
+  private JsonReader openJson(Path file) throws IOException {
+    return new JsonReader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+  }
 }
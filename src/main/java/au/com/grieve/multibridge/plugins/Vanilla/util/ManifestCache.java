@@ -0,0 +1,143 @@
+package au.com.grieve.multibridge.plugins.Vanilla.util;
+
+import au.com.grieve.multibridge.util.AtomicFiles;
+import au.com.grieve.multibridge.util.Hashes;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import net.md_5.bungee.config.Configuration;
+import net.md_5.bungee.config.ConfigurationProvider;
+import net.md_5.bungee.config.YamlConfiguration;
+
+/**
+ * Keeps local copies of remote manifests
+ *
+ * <p>A copy younger than its time to live is used as is. Older copies are revalidated with the
+ * ETag and Last-Modified the server sent, so an unchanged manifest is not downloaded again. If the
+ * server can't be reached a stale copy is used. In offline mode only cached copies are used.
+ */
+public class ManifestCache {
+  /** Time to live for documents that never change, such as those whose URL holds their hash */
+  public static final long FOREVER = Long.MAX_VALUE;
+
+  private static final int CONNECT_TIMEOUT = 10000;
+  private static final int READ_TIMEOUT = 30000;
+
+  private final Path folder;
+  private final long ttl;
+  private final boolean offline;
+
+  /**
+   * @param ttl milliseconds a copy is used before it is revalidated
+   */
+  public ManifestCache(Path folder, long ttl, boolean offline) {
+    this.folder = folder;
+    this.ttl = ttl;
+    this.offline = offline;
+  }
+
+  public boolean isOffline() {
+    return offline;
+  }
+
+  /** Return a local copy of url using the default time to live */
+  public Path get(URL url) throws IOException {
+    return get(url, ttl);
+  }
+
+  /** Return a local copy of url, fetching it if it is missing or older than ttl milliseconds */
+  public synchronized Path get(URL url, long ttl) throws IOException {
+    String key = Hashes.sha1(url.toString().getBytes(StandardCharsets.UTF_8));
+    Path file = folder.resolve(key + ".json");
+    Path metaFile = folder.resolve(key + ".yml");
+
+    Configuration meta = loadMeta(metaFile);
+    boolean cached = Files.exists(file);
+
+    if (cached && (offline || System.currentTimeMillis() - meta.getLong("checked", 0) < ttl)) {
+      return file;
+    }
+
+    if (offline) {
+      throw new IOException("Offline and " + url + " has not been cached");
+    }
+
+    try {
+      fetch(url, file, meta, cached);
+    } catch (IOException e) {
+      if (!cached) {
+        throw e;
+      }
+      System.err.println("[VanillaBuilder] Using cached " + url + ": " + e.getMessage());
+      return file;
+    }
+
+    meta.set("url", url.toString());
+    meta.set("checked", System.currentTimeMillis());
+    AtomicFiles.write(metaFile, dumpMeta(meta));
+    return file;
+  }
+
+  /** Download url to file unless the server says our cached copy is still current */
+  private void fetch(URL url, Path file, Configuration meta, boolean cached) throws IOException {
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+
+    if (connection instanceof HttpURLConnection) {
+      HttpURLConnection http = (HttpURLConnection) connection;
+      if (cached && meta.getString("etag", null) != null) {
+        http.setRequestProperty("If-None-Match", meta.getString("etag"));
+      }
+      if (cached && meta.getString("last-modified", null) != null) {
+        http.setRequestProperty("If-Modified-Since", meta.getString("last-modified"));
+      }
+
+      int code = http.getResponseCode();
+      if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached) {
+        http.disconnect();
+        return;
+      }
+      if (code != HttpURLConnection.HTTP_OK) {
+        http.disconnect();
+        throw new IOException("Unable to fetch " + url + ": HTTP " + code);
+      }
+    }
+
+    Files.createDirectories(folder);
+    Path temp = AtomicFiles.tempFor(file);
+    try (InputStream input = connection.getInputStream()) {
+      Files.copy(input, temp);
+      AtomicFiles.move(temp, file);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+
+    meta.set("etag", connection.getHeaderField("ETag"));
+    meta.set("last-modified", connection.getHeaderField("Last-Modified"));
+  }
+
+  private Configuration loadMeta(Path metaFile) {
+    if (!Files.exists(metaFile)) {
+      return new Configuration();
+    }
+
+    try {
+      return ConfigurationProvider.getProvider(YamlConfiguration.class).load(metaFile.toFile());
+    } catch (IOException e) {
+      return new Configuration();
+    }
+  }
+
+  private byte[] dumpMeta(Configuration meta) {
+    StringWriter output = new StringWriter();
+    ConfigurationProvider.getProvider(YamlConfiguration.class).save(meta, output);
+    return output.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
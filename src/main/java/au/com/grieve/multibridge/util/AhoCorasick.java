@@ -0,0 +1,99 @@
+package au.com.grieve.multibridge.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Finds which of a fixed set of literals occur in a string in a single pass
+ *
+ * <p>Literals are identified by the order they were given in.
+ */
+public class AhoCorasick {
+  private final List<Map<Character, Integer>> next = new ArrayList<>();
+  private final List<Integer> fail = new ArrayList<>();
+  private final List<int[]> outputs = new ArrayList<>();
+  private final int size;
+
+  public AhoCorasick(List<String> literals) {
+    this.size = literals.size();
+    addNode();
+
+    // Build Trie
+    List<List<Integer>> found = new ArrayList<>();
+    found.add(new ArrayList<>());
+    for (int i = 0; i < literals.size(); i++) {
+      int node = 0;
+      for (char c : literals.get(i).toCharArray()) {
+        Integer child = next.get(node).get(c);
+        if (child == null) {
+          child = addNode();
+          found.add(new ArrayList<>());
+          next.get(node).put(c, child);
+        }
+        node = child;
+      }
+      found.get(node).add(i);
+    }
+
+    // Failure links, breadth first so parents are done before children
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int child : next.get(0).values()) {
+      fail.set(child, 0);
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int node = queue.remove();
+      for (Map.Entry<Character, Integer> e : next.get(node).entrySet()) {
+        int child = e.getValue();
+        int f = fail.get(node);
+        while (f != 0 && !next.get(f).containsKey(e.getKey())) {
+          f = fail.get(f);
+        }
+        Integer target = next.get(f).get(e.getKey());
+        fail.set(child, target != null && target != child ? target : 0);
+        found.get(child).addAll(found.get(fail.get(child)));
+        queue.add(child);
+      }
+    }
+
+    for (List<Integer> f : found) {
+      outputs.add(f.stream().mapToInt(Integer::intValue).toArray());
+    }
+  }
+
+  private int addNode() {
+    next.add(new HashMap<>());
+    fail.add(0);
+    return next.size() - 1;
+  }
+
+  /** Return the number of literals */
+  public int size() {
+    return size;
+  }
+
+  /** Return the literals found in text */
+  public BitSet search(CharSequence text) {
+    BitSet result = new BitSet(size);
+    int node = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      Integer child = next.get(node).get(c);
+      while (child == null && node != 0) {
+        node = fail.get(node);
+        child = next.get(node).get(c);
+      }
+      node = child != null ? child : 0;
+
+      for (int literal : outputs.get(node)) {
+        result.set(literal);
+      }
+    }
+    return result;
+  }
+}
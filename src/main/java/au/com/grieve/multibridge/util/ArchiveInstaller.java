@@ -0,0 +1,644 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Installs a folder from a zip, tar.gz or tar.zst archive at a URL
+ *
+ * <p>The archive is downloaded to a temporary file first. Zip entries are then written in parallel
+ * straight from the file, while tar archives are streamed. Everything is extracted into a hidden
+ * staging folder next to the target, which is renamed into place once complete, so a failed
+ * install leaves nothing behind. Entries that would land outside the target are rejected and unix
+ * permissions are kept where the archive records them.
+ *
+ * <p>Symbolic links are created after everything else, and no entry may be written through one, so
+ * a chain of links can't be used to reach outside the target.
+ *
+ * <p>tar.zst archives are decompressed with the zstd command, which must be installed.
+ */
+public class ArchiveInstaller {
+  private static final int BUFFER_SIZE = 256 * 1024;
+  private static final int CONNECT_TIMEOUT = 10000;
+  private static final int READ_TIMEOUT = 60000;
+
+  private static final ThreadLocal<byte[]> BUFFERS =
+      ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+  private final int threads;
+
+  public ArchiveInstaller(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /** Download url and extract it to target, which must not exist */
+  public void install(URL url, Path target) throws IOException {
+    if (Files.exists(target)) {
+      throw new IOException("Folder '" + target.toString() + "' already exists.");
+    }
+    Files.createDirectories(target.getParent());
+
+    Path archive = AtomicFiles.tempFor(target);
+    Path staging = AtomicFiles.tempFor(target);
+    try {
+      URLConnection connection = url.openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT);
+      connection.setReadTimeout(READ_TIMEOUT);
+      try (InputStream input = connection.getInputStream()) {
+        Files.copy(input, archive);
+      }
+
+      Files.createDirectory(staging);
+      extract(archive, staging);
+      Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+    } catch (Throwable e) {
+      try {
+        delete(staging);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    } finally {
+      Files.deleteIfExists(archive);
+    }
+  }
+
+  /** Extract archive into target, working out its format from its first bytes */
+  public void extract(Path archive, Path target) throws IOException {
+    byte[] magic = new byte[4];
+    try (InputStream input = Files.newInputStream(archive)) {
+      int read = 0;
+      while (read < magic.length) {
+        int len = input.read(magic, read, magic.length - read);
+        if (len < 0) {
+          break;
+        }
+        read += len;
+      }
+    }
+
+    if (magic[0] == 'P' && magic[1] == 'K') {
+      extractZip(archive, target);
+    } else if ((magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+      try (InputStream input =
+          new GZIPInputStream(Files.newInputStream(archive), BUFFER_SIZE)) {
+        extractTar(input, target);
+      }
+    } else if ((magic[0] & 0xff) == 0x28
+        && (magic[1] & 0xff) == 0xb5
+        && (magic[2] & 0xff) == 0x2f
+        && (magic[3] & 0xff) == 0xfd) {
+      extractZstd(archive, target);
+    } else {
+      throw new IOException("Unsupported archive. Expected zip, tar.gz or tar.zst");
+    }
+  }
+
+  /** Extract a zip, writing entries in parallel */
+  private void extractZip(Path archive, Path target) throws IOException {
+    Map<String, Integer> modes = readZipModes(archive);
+
+    try (ZipFile zip = new ZipFile(archive.toFile())) {
+      // Folders first so writers never race to create them
+      List<ZipEntry> files = new ArrayList<>();
+      List<ZipEntry> links = new ArrayList<>();
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        ZipEntry entry = e.nextElement();
+        Path path = resolve(target, entry.getName());
+        Integer mode = modes.get(entry.getName());
+        if (entry.isDirectory()) {
+          Files.createDirectories(path);
+        } else if (mode != null && (mode & 0170000) == 0120000) {
+          links.add(entry);
+        } else {
+          Files.createDirectories(path.getParent());
+          files.add(entry);
+        }
+      }
+
+      AtomicInteger count = new AtomicInteger();
+      ExecutorService executor =
+          Executors.newFixedThreadPool(
+              Math.min(threads, Math.max(1, files.size())),
+              r -> {
+                Thread thread = new Thread(r, "MultiBridge Extractor #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              });
+
+      try {
+        List<Future<?>> futures = new ArrayList<>(files.size());
+        for (ZipEntry entry : files) {
+          futures.add(
+              executor.submit(
+                  () -> {
+                    Path path = resolve(target, entry.getName());
+                    Integer mode = modes.get(entry.getName());
+                    try (InputStream input = zip.getInputStream(entry)) {
+                      write(input, path, -1);
+                    }
+                    Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getTime()));
+                    setMode(path, mode);
+                    return null;
+                  }));
+        }
+
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while extracting");
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof IOException
+            ? (IOException) e.getCause()
+            : new IOException(e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+
+      // Symbolic links hold their target as their content
+      List<Path> created = new ArrayList<>();
+      for (ZipEntry entry : links) {
+        Path path = resolve(target, entry.getName());
+        try (InputStream input = zip.getInputStream(entry)) {
+          link(target, path, new String(readAll(input), StandardCharsets.UTF_8));
+        }
+        created.add(path);
+      }
+      checkLinks(target, created);
+    }
+
+    // Folder modes last so read-only folders don't stop us writing into them
+    for (Map.Entry<String, Integer> entry : modes.entrySet()) {
+      if (entry.getKey().endsWith("/")) {
+        setMode(resolve(target, entry.getKey()), entry.getValue());
+      }
+    }
+  }
+
+  /** Pipe archive through zstd and extract the tar it contains */
+  private void extractZstd(Path archive, Path target) throws IOException {
+    Process process;
+    try {
+      process =
+          new ProcessBuilder("zstd", "-dcq", archive.toString())
+              .redirectError(ProcessBuilder.Redirect.INHERIT)
+              .start();
+    } catch (IOException e) {
+      throw new IOException("The zstd command is needed to install .tar.zst archives");
+    }
+
+    try {
+      try (InputStream input = process.getInputStream()) {
+        extractTar(input, target);
+
+        // Read past the end of the tar so zstd isn't cut off before it exits
+        byte[] buffer = BUFFERS.get();
+        while (input.read(buffer) >= 0) {
+          continue;
+        }
+      }
+
+      if (process.waitFor() != 0) {
+        throw new IOException("zstd failed with exit code " + process.exitValue());
+      }
+    } catch (InterruptedException e) {
+      process.destroy();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting");
+    } catch (IOException | RuntimeException e) {
+      process.destroy();
+      throw e;
+    }
+  }
+
+  /** Extract a tar stream. Supports ustar, GNU long names and pax paths */
+  private void extractTar(InputStream stream, Path target) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+    byte[] header = new byte[512];
+    String longName = null;
+    String longLink = null;
+    Map<Path, Integer> folderModes = new HashMap<>();
+    Map<Path, String> links = new LinkedHashMap<>();
+
+    while (true) {
+      try {
+        input.readFully(header);
+      } catch (EOFException e) {
+        break;
+      }
+
+      // End of archive is marked by an empty block
+      if (isEmpty(header)) {
+        break;
+      }
+
+      char type = (char) header[156];
+      long size = parseNumber(header, 124, 12);
+
+      // Headers that describe the next entry
+      if (type == 'L' || type == 'K' || type == 'x' || type == 'g') {
+        String data = new String(readData(input, size), StandardCharsets.UTF_8);
+        if (type == 'L') {
+          longName = trimNull(data);
+        } else if (type == 'K') {
+          longLink = trimNull(data);
+        } else if (type == 'x') {
+          Map<String, String> pax = parsePax(data);
+          longName = pax.getOrDefault("path", longName);
+          longLink = pax.getOrDefault("linkpath", longLink);
+        }
+        continue;
+      }
+
+      String name = longName != null ? longName : headerName(header);
+      String link = longLink != null ? longLink : parseString(header, 157, 100);
+      longName = null;
+      longLink = null;
+
+      int mode = (int) parseNumber(header, 100, 8);
+      long mtime = parseNumber(header, 136, 12);
+      Path path = resolve(target, name);
+
+      switch (type) {
+        case '5':
+          Files.createDirectories(path);
+          folderModes.put(path, mode);
+          break;
+        case '2':
+          Files.createDirectories(path.getParent());
+          links.put(path, link);
+          break;
+        case '1':
+          Path existing = resolve(target, link);
+          if (!Files.isRegularFile(existing, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("Archive hardlink to a missing file: " + name);
+          }
+          Files.createDirectories(path.getParent());
+          Files.createLink(path, existing);
+          break;
+        case '0':
+        case '\0':
+        case '7':
+          Files.createDirectories(path.getParent());
+          write(input, path, size);
+          skipPadding(input, size);
+          Files.setLastModifiedTime(path, FileTime.fromMillis(mtime * 1000));
+          setMode(path, mode);
+          break;
+        default:
+          // Devices, fifos and the like are skipped
+          skip(input, size);
+          skipPadding(input, size);
+      }
+    }
+
+    for (Map.Entry<Path, String> entry : links.entrySet()) {
+      link(target, entry.getKey(), entry.getValue());
+    }
+    checkLinks(target, links.keySet());
+
+    for (Map.Entry<Path, Integer> entry : folderModes.entrySet()) {
+      setMode(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Resolve name against root, rejecting anything that would escape it either by its name or by
+   * passing through a symbolic link
+   */
+  private static Path resolve(Path root, String name) throws IOException {
+    Path path = root.resolve(name).normalize();
+    if (!path.startsWith(root.normalize()) || root.getFileSystem().getPath(name).isAbsolute()) {
+      throw new IOException("Archive entry outside of target: " + name);
+    }
+    checkNoLinks(root, path);
+    return path;
+  }
+
+  /** Reject path if it, or any folder between it and root, is a symbolic link */
+  private static void checkNoLinks(Path root, Path path) throws IOException {
+    Path top = root.normalize();
+    for (Path p = path; p != null && !p.equals(top); p = p.getParent()) {
+      if (Files.isSymbolicLink(p)) {
+        throw new IOException("Archive entry through a link: " + top.relativize(path));
+      }
+    }
+  }
+
+  /** Create a symbolic link, which may only point inside root */
+  private static void link(Path root, Path path, String link) throws IOException {
+    Path linkPath = path.getFileSystem().getPath(link);
+    if (linkPath.isAbsolute()
+        || !path.getParent().resolve(linkPath).normalize().startsWith(root.normalize())) {
+      throw new IOException("Archive link outside of target: " + root.relativize(path));
+    }
+
+    // Earlier links may now sit between root and path
+    checkNoLinks(root, path);
+    Files.createSymbolicLink(path, linkPath);
+  }
+
+  /**
+   * Check that every link stays inside root when followed. Links are only checked by name as they
+   * are created, and one may lead through another that was created later
+   */
+  private static void checkLinks(Path root, Collection<Path> links) throws IOException {
+    Path top = root.toRealPath();
+    for (Path link : links) {
+      follow(top, link.getParent().toRealPath(), Files.readSymbolicLink(link), 0);
+    }
+  }
+
+  /**
+   * Follow target from folder one name at a time, the way the filesystem would, rejecting it if it
+   * ever leaves top. Names that don't exist yet are followed as written.
+   */
+  private static Path follow(Path top, Path folder, Path target, int depth) throws IOException {
+    if (depth > 40 || target.isAbsolute()) {
+      throw new IOException("Archive link outside of target: " + target);
+    }
+
+    Path current = folder;
+    for (Path name : target) {
+      if (name.toString().equals(".")) {
+        continue;
+      }
+      current = name.toString().equals("..") ? current.getParent() : current.resolve(name);
+      if (current == null || !current.startsWith(top)) {
+        throw new IOException("Archive link outside of target: " + target);
+      }
+      if (Files.isSymbolicLink(current)) {
+        current = follow(top, current.getParent(), Files.readSymbolicLink(current), depth + 1);
+      }
+    }
+    return current;
+  }
+
+  private static byte[] readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = BUFFERS.get();
+    for (int len; (len = input.read(buffer)) >= 0; ) {
+      output.write(buffer, 0, len);
+    }
+    return output.toByteArray();
+  }
+
+  /** Write length bytes of input to path, or all of it if length is -1 */
+  private static void write(InputStream input, Path path, long length) throws IOException {
+    byte[] buffer = BUFFERS.get();
+    try (OutputStream output =
+        Files.newOutputStream(
+            path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      long remaining = length < 0 ? Long.MAX_VALUE : length;
+      while (remaining > 0) {
+        int len = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (len < 0) {
+          if (length < 0) {
+            break;
+          }
+          throw new EOFException("Archive ended part way through " + path.getFileName());
+        }
+        output.write(buffer, 0, len);
+        remaining -= len;
+      }
+    }
+  }
+
+  /** Apply the permission bits of a unix mode, if known and supported */
+  private static void setMode(Path path, Integer mode) throws IOException {
+    if (mode == null
+        || (mode & 07777) == 0
+        || !path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return;
+    }
+
+    Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+    PosixFilePermission[] bits = PosixFilePermission.values();
+    for (int i = 0; i < bits.length; i++) {
+      // Values run from OWNER_READ (0400) down to OTHERS_EXECUTE (0001)
+      if ((mode & (1 << (bits.length - 1 - i))) != 0) {
+        permissions.add(bits[i]);
+      }
+    }
+    Files.setPosixFilePermissions(path, permissions);
+  }
+
+  /**
+   * Return the unix mode of each zip entry that has one
+   *
+   * <p>ZipFile does not expose these so they are read from the central directory. Archives this
+   * can't read, such as zip64, are extracted without their permissions.
+   */
+  private static Map<String, Integer> readZipModes(Path archive) {
+    Map<String, Integer> modes = new HashMap<>();
+    try (RandomAccessFile file = new RandomAccessFile(archive.toFile(), "r")) {
+      // Find the end of central directory record, which may be followed by a comment
+      long length = file.length();
+      int tail = (int) Math.min(length, 22 + 65535);
+      byte[] end = new byte[tail];
+      file.seek(length - tail);
+      file.readFully(end);
+
+      int eocd = -1;
+      for (int i = tail - 22; i >= 0; i--) {
+        if (readInt(end, i) == 0x06054b50) {
+          eocd = i;
+          break;
+        }
+      }
+      if (eocd < 0) {
+        return modes;
+      }
+
+      int entries = readShort(end, eocd + 10);
+      long size = readInt(end, eocd + 12) & 0xffffffffL;
+      long offset = readInt(end, eocd + 16) & 0xffffffffL;
+      if (offset + size > length) {
+        return modes;
+      }
+
+      byte[] directory = new byte[(int) size];
+      file.seek(offset);
+      file.readFully(directory);
+
+      int pos = 0;
+      for (int i = 0; i < entries && pos + 46 <= directory.length; i++) {
+        if (readInt(directory, pos) != 0x02014b50) {
+          break;
+        }
+        int madeBy = readShort(directory, pos + 4) >> 8;
+        int nameLength = readShort(directory, pos + 28);
+        int extraLength = readShort(directory, pos + 30);
+        int commentLength = readShort(directory, pos + 32);
+        int external = readInt(directory, pos + 38);
+
+        // Only archives made on unix record a mode
+        if (madeBy == 3) {
+          String name =
+              new String(directory, pos + 46, nameLength, StandardCharsets.UTF_8);
+          modes.put(name, external >>> 16);
+        }
+        pos += 46 + nameLength + extraLength + commentLength;
+      }
+    } catch (IOException | RuntimeException e) {
+      modes.clear();
+    }
+    return modes;
+  }
+
+  private static int readShort(byte[] data, int pos) {
+    return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8;
+  }
+
+  private static int readInt(byte[] data, int pos) {
+    return readShort(data, pos) | readShort(data, pos + 2) << 16;
+  }
+
+  private static boolean isEmpty(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String headerName(byte[] header) {
+    String name = parseString(header, 0, 100);
+    String magic = parseString(header, 257, 6);
+    if (magic.startsWith("ustar")) {
+      String prefix = parseString(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        return prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  private static String parseString(byte[] header, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  /** Parse an octal field, or a base-256 one if its top bit is set */
+  private static long parseNumber(byte[] header, int offset, int length) {
+    long result = 0;
+    if ((header[offset] & 0x80) != 0) {
+      for (int i = offset + 1; i < offset + length; i++) {
+        result = (result << 8) | (header[i] & 0xff);
+      }
+      return result;
+    }
+
+    for (int i = offset; i < offset + length; i++) {
+      byte b = header[i];
+      if (b >= '0' && b <= '7') {
+        result = (result << 3) + (b - '0');
+      } else if (b == 0 || (b == ' ' && result > 0)) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /** Parse pax records of the form "length key=value\n" */
+  private static Map<String, String> parsePax(String data) {
+    Map<String, String> result = new HashMap<>();
+    for (String record : data.split("\n")) {
+      int space = record.indexOf(' ');
+      int equals = record.indexOf('=', space + 1);
+      if (space > 0 && equals > space) {
+        result.put(record.substring(space + 1, equals), record.substring(equals + 1));
+      }
+    }
+    return result;
+  }
+
+  private static String trimNull(String value) {
+    int end = value.indexOf('\0');
+    return end >= 0 ? value.substring(0, end) : value;
+  }
+
+  private static byte[] readData(DataInputStream input, long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Tar header too large");
+    }
+    byte[] data = new byte[(int) size];
+    input.readFully(data);
+    skipPadding(input, size);
+    return data;
+  }
+
+  private static void skipPadding(DataInputStream input, long size) throws IOException {
+    skip(input, (512 - size % 512) % 512);
+  }
+
+  private static void skip(DataInputStream input, long size) throws IOException {
+    byte[] buffer = BUFFERS.get();
+    while (size > 0) {
+      int len = input.read(buffer, 0, (int) Math.min(buffer.length, size));
+      if (len < 0) {
+        throw new EOFException("Archive ended unexpectedly");
+      }
+      size -= len;
+    }
+  }
+
+  /** Remove path and everything under it, if it exists */
+  private static void delete(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+
+    List<Path> paths;
+    try (Stream<Path> stream = Files.walk(path)) {
+      paths = new ArrayList<>();
+      stream.forEach(paths::add);
+    }
+    Collections.sort(paths, Comparator.reverseOrder());
+    for (Path p : paths) {
+      Files.deleteIfExists(p);
+    }
+  }
+}
@@ -0,0 +1,414 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store of downloaded and generated files
+ *
+ * <p>Files are stored once under objects/ by their SHA-1 and looked up by name through small
+ * pointer files under names/. Stored files are read-only and are hardlinked into place, so many
+ * instances using the same file share one copy on disk and in the page cache.
+ *
+ * <p>Producing a file is single-flight: concurrent requests for the same name wait for the one in
+ * progress, and a lock file under locks/ does the same for other processes sharing the folder.
+ *
+ * <p>Looking up a name touches its pointer file, so the store can be trimmed to a size by removing
+ * the least recently used files.
+ */
+public class ArtifactStore {
+  private static final int CONNECT_TIMEOUT = 10000;
+  private static final int READ_TIMEOUT = 60000;
+  // Files used more recently than this are never removed, as they may be about to be linked
+  private static final long MIN_AGE = TimeUnit.MINUTES.toMillis(10);
+
+  private final Path folder;
+  private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Produces the file to be stored under a name */
+  public interface Producer {
+    Path produce() throws IOException;
+  }
+
+  public ArtifactStore(Path folder) {
+    this.folder = folder;
+  }
+
+  /** Return the stored file for name, or null if it has not been stored */
+  public Path get(String name) throws IOException {
+    Path pointer = namePath(name);
+    if (!Files.exists(pointer)) {
+      return null;
+    }
+
+    String hash = readHash(pointer);
+    Path object = objectPath(hash);
+    if (!Files.exists(object)) {
+      return null;
+    }
+
+    Files.setLastModifiedTime(pointer, FileTime.fromMillis(System.currentTimeMillis()));
+    return object;
+  }
+
+  /**
+   * Return the stored file for name, downloading it from url if needed
+   *
+   * <p>The SHA-1 is worked out while downloading. If sha1 is given the download must match it, and
+   * a stored file that does not match is downloaded again.
+   */
+  public Path download(String name, URL url, String sha1) throws IOException {
+    return download(name, url, sha1, () -> false);
+  }
+
+  /**
+   * As {@link #download(String, URL, String)}, stopping with CancellationException once cancelled
+   * is true. Anyone waiting on the same download starts it again themselves
+   */
+  public Path download(String name, URL url, String sha1, BooleanSupplier cancelled)
+      throws IOException {
+    String expected = sha1 != null ? sha1.toLowerCase() : null;
+    return singleFlight(name, () -> fetch(name, url, expected, cancelled));
+  }
+
+  /** Return the stored file for name, storing the file from producer if there is none yet */
+  public Path get(String name, Producer producer) throws IOException {
+    return singleFlight(
+        name,
+        () -> {
+          Path existing = get(name);
+          return existing != null ? existing : producer.produce();
+        });
+  }
+
+  private Path fetch(String name, URL url, String sha1, BooleanSupplier cancelled)
+      throws IOException {
+    Path existing = get(name);
+    if (existing != null && (sha1 == null || existing.getFileName().toString().equals(sha1))) {
+      return existing;
+    }
+
+    // Someone else may already have this exact file stored
+    if (sha1 != null && Files.exists(objectPath(sha1))) {
+      setName(name, sha1);
+      return objectPath(sha1);
+    }
+
+    Files.createDirectories(folder);
+    Path temp = AtomicFiles.tempFor(folder.resolve(name));
+    try {
+      MessageDigest digest = Hashes.newSha1();
+      URLConnection connection = url.openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT);
+      connection.setReadTimeout(READ_TIMEOUT);
+      try (InputStream input = new DigestInputStream(connection.getInputStream(), digest);
+          OutputStream output = Files.newOutputStream(temp)) {
+        byte[] buffer = new byte[64 * 1024];
+        for (int len; (len = input.read(buffer)) >= 0; ) {
+          if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Cancelled");
+          }
+          output.write(buffer, 0, len);
+        }
+      }
+
+      String hash = Hashes.toHex(digest.digest());
+      if (sha1 != null && !sha1.equals(hash)) {
+        throw new IOException("Checksum mismatch for " + url + ": " + hash + " not " + sha1);
+      }
+      return store(name, temp, hash);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Store file under name, consuming it */
+  public Path put(String name, Path file) throws IOException {
+    MessageDigest digest = Hashes.newSha1();
+    try (InputStream input = new DigestInputStream(Files.newInputStream(file), digest)) {
+      byte[] buffer = new byte[64 * 1024];
+      while (input.read(buffer) >= 0) {
+        continue;
+      }
+    }
+    return store(name, file, Hashes.toHex(digest.digest()));
+  }
+
+  /** Hardlink a stored file to target, falling back to a copy if links are not possible */
+  public void link(Path artifact, Path target) throws IOException {
+    try {
+      Files.createLink(target, artifact);
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      Files.copy(artifact, target, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+  }
+
+  /**
+   * Count a build that needed something from the store. Callers count once per build, so a build
+   * that looks up several files isn't counted several times
+   *
+   * @param hit true if everything needed was already stored
+   */
+  public void recordUse(boolean hit) {
+    (hit ? hits : misses).incrementAndGet();
+  }
+
+  /** Return the number of builds that found everything they needed stored */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Return the number of builds that had to download or produce a file */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Return the total size in bytes of all stored files */
+  public long getSize() throws IOException {
+    long size = 0;
+    for (StoredObject object : listObjects()) {
+      size += object.size;
+    }
+    return size;
+  }
+
+  /** Return the number of stored files */
+  public int getCount() throws IOException {
+    return listObjects().size();
+  }
+
+  /**
+   * Remove least recently used files until the store is no larger than maxSize bytes, returning the
+   * number of bytes freed. Files still linked from elsewhere are kept, as removing them would free
+   * nothing.
+   */
+  public synchronized long trim(long maxSize) throws IOException {
+    List<StoredObject> objects = listObjects();
+    long size = 0;
+    for (StoredObject object : objects) {
+      size += object.size;
+    }
+
+    // Drop pointers to files that no longer exist
+    for (Path pointer : listNames()) {
+      if (!Files.exists(objectPath(readHash(pointer)))) {
+        Files.deleteIfExists(pointer);
+      }
+    }
+
+    if (size <= maxSize) {
+      return 0;
+    }
+
+    Map<String, List<Path>> pointers = new HashMap<>();
+    Map<String, Long> lastUsed = new HashMap<>();
+    for (Path pointer : listNames()) {
+      String hash = readHash(pointer);
+      pointers.computeIfAbsent(hash, k -> new ArrayList<>()).add(pointer);
+      lastUsed.merge(hash, Files.getLastModifiedTime(pointer).toMillis(), Math::max);
+    }
+    for (StoredObject object : objects) {
+      object.lastUsed = lastUsed.getOrDefault(object.hash, object.lastUsed);
+    }
+    objects.sort(Comparator.comparingLong(o -> o.lastUsed));
+
+    long freed = 0;
+    long cutoff = System.currentTimeMillis() - MIN_AGE;
+    for (StoredObject object : objects) {
+      if (size - freed <= maxSize) {
+        break;
+      }
+      if (object.lastUsed > cutoff || linkCount(object.path) > 1) {
+        continue;
+      }
+
+      for (Path pointer : pointers.getOrDefault(object.hash, Collections.emptyList())) {
+        Files.deleteIfExists(pointer);
+      }
+      Files.deleteIfExists(object.path);
+      freed += object.size;
+    }
+    return freed;
+  }
+
+  /** Return the root folder of the store */
+  public Path getFolder() {
+    return folder;
+  }
+
+  /**
+   * Run task for name unless it is already running, in which case wait for that run instead. Only
+   * one process at a time runs a task for the same name. A run that was cancelled only fails its
+   * own caller, anyone waiting on it runs their own task instead.
+   */
+  private Path singleFlight(String name, Producer task) throws IOException {
+    while (true) {
+      CompletableFuture<Path> ours = new CompletableFuture<>();
+      CompletableFuture<Path> running = inFlight.putIfAbsent(name, ours);
+      if (running == null) {
+        return lead(name, ours, task);
+      }
+
+      try {
+        return await(running);
+      } catch (CancellationException e) {
+        // Whoever was running it gave up, not us
+      }
+    }
+  }
+
+  private Path lead(String name, CompletableFuture<Path> ours, Producer task) throws IOException {
+    try {
+      Path lockFile = folder.resolve("locks").resolve(name + ".lock");
+      Files.createDirectories(lockFile.getParent());
+      try (FileChannel channel =
+              FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+          FileLock ignored = channel.lock()) {
+        ours.complete(task.produce());
+      }
+    } catch (Throwable e) {
+      // Waiters must be released whatever goes wrong, Errors included
+      ours.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(name, ours);
+    }
+    return ours.join();
+  }
+
+  private static Path await(CompletableFuture<Path> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for artifact");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof CancellationException) {
+        throw (CancellationException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private List<StoredObject> listObjects() throws IOException {
+    Path objects = folder.resolve("objects");
+    if (!Files.exists(objects)) {
+      return new ArrayList<>();
+    }
+
+    try (Stream<Path> walk = Files.walk(objects, 2)) {
+      List<StoredObject> result = new ArrayList<>();
+      for (Path path : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        result.add(
+            new StoredObject(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+      }
+      return result;
+    }
+  }
+
+  private List<Path> listNames() throws IOException {
+    Path names = folder.resolve("names");
+    if (!Files.exists(names)) {
+      return new ArrayList<>();
+    }
+
+    try (Stream<Path> list = Files.list(names)) {
+      return list.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+  }
+
+  private static String readHash(Path pointer) throws IOException {
+    return new String(Files.readAllBytes(pointer), StandardCharsets.UTF_8).trim();
+  }
+
+  /** Return the number of hardlinks to file, or 1 where that can't be found out */
+  private static int linkCount(Path file) {
+    try {
+      return (Integer) Files.getAttribute(file, "unix:nlink");
+    } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+      return 1;
+    }
+  }
+
+  private static class StoredObject {
+    final Path path;
+    final String hash;
+    final long size;
+    long lastUsed;
+
+    StoredObject(Path path, long size, long lastUsed) {
+      this.path = path;
+      this.hash = path.getFileName().toString();
+      this.size = size;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  /** Move file into the store as hash and point name at it. file is always consumed */
+  private Path store(String name, Path file, String hash) throws IOException {
+    Path object = objectPath(hash);
+    if (!Files.exists(object)) {
+      Files.createDirectories(object.getParent());
+      if (object.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("r--r--r--"));
+      }
+      AtomicFiles.move(file, object);
+    } else {
+      // Already stored, so this copy isn't needed
+      Files.deleteIfExists(file);
+    }
+    setName(name, hash);
+    return object;
+  }
+
+  private void setName(String name, String hash) throws IOException {
+    Files.createDirectories(namePath(name).getParent());
+    AtomicFiles.write(namePath(name), hash.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Path namePath(String name) {
+    return folder.resolve("names").resolve(name);
+  }
+
+  private Path objectPath(String hash) {
+    return folder.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash);
+  }
+}
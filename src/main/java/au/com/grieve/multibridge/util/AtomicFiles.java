@@ -0,0 +1,53 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/** Helpers to replace files without readers ever seeing a partial file */
+public final class AtomicFiles {
+
+  private AtomicFiles() {}
+
+  /** Return a temporary path next to target */
+  public static Path tempFor(Path target) {
+    return target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
+  }
+
+  /**
+   * Write data to target by way of a temporary file in the same folder. The data is synced to disk
+   * before it replaces target so a crash leaves either the old or the new file.
+   */
+  public static void write(Path target, byte[] data) throws IOException {
+    Path temp = tempFor(target);
+    try {
+      try (FileChannel channel =
+          FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      move(temp, target);
+    } catch (Throwable e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  /** Move source over target, atomically if the filesystem allows it */
+  public static void move(Path source, Path target) throws IOException {
+    try {
+      Files.move(
+          source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A template parsed once into literal and variable segments
+ *
+ * <p>Variables are written as {{NAME}} where NAME is made of letters, digits and underscores. Names
+ * are matched case-insensitively.
+ */
+public class CompiledTemplate {
+  private final String[] literals;
+  private final String[] variables;
+
+  private CompiledTemplate(String[] literals, String[] variables) {
+    this.literals = literals;
+    this.variables = variables;
+  }
+
+  /** Parse input into a CompiledTemplate */
+  public static CompiledTemplate compile(String input) {
+    List<String> literals = new ArrayList<>();
+    List<String> variables = new ArrayList<>();
+
+    int literalStart = 0;
+    int i = input.indexOf("{{");
+    while (i >= 0) {
+      int end = scanVariable(input, i + 2);
+      if (end < 0) {
+        i = input.indexOf("{{", i + 1);
+        continue;
+      }
+
+      literals.add(input.substring(literalStart, i));
+      variables.add(input.substring(i + 2, end).toUpperCase());
+      literalStart = end + 2;
+      i = input.indexOf("{{", literalStart);
+    }
+    literals.add(input.substring(literalStart));
+
+    return new CompiledTemplate(literals.toArray(new String[0]), variables.toArray(new String[0]));
+  }
+
+  /**
+   * Return the end of a variable name starting at start if it is followed by }}, otherwise -1
+   */
+  private static int scanVariable(String input, int start) {
+    int i = start;
+    while (i < input.length() && isNameChar(input.charAt(i))) {
+      i++;
+    }
+
+    if (i == start || !input.startsWith("}}", i)) {
+      return -1;
+    }
+    return i;
+  }
+
+  static boolean isNameChar(int c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  /** Return true if there are no variables in this template */
+  public boolean isLiteral() {
+    return variables.length == 0;
+  }
+
+  /** Return the variables referenced, in order of first use */
+  public Set<String> getVariables() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(variables)));
+  }
+
+  /** Render into output, looking up each variable with resolver */
+  public void render(Resolver resolver, StringBuilder output) throws IOException {
+    for (int i = 0; i < variables.length; i++) {
+      output.append(literals[i]);
+      output.append(resolver.resolve(variables[i]));
+    }
+    output.append(literals[variables.length]);
+  }
+
+  /** Resolves a variable to its value */
+  public interface Resolver {
+    String resolve(String variable) throws IOException;
+  }
+}
@@ -0,0 +1,117 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import net.md_5.bungee.config.Configuration;
+import net.md_5.bungee.config.ConfigurationProvider;
+import net.md_5.bungee.config.YamlConfiguration;
+
+/**
+ * Write-behind storage for YAML configuration files
+ *
+ * <p>Saving a configuration only marks it dirty. It is written out on a background thread after a
+ * short delay so a burst of changes to the same file results in a single write. Writes replace the
+ * file atomically. A file stays dirty until it has been written, so a failed write is retried.
+ *
+ * <p>Configurations are serialized while holding their monitor, so code changing a saved
+ * configuration from more than one thread should hold it too.
+ */
+public class ConfigStore {
+  private final long delay;
+  private final Map<Path, Pending> dirty = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService writer;
+
+  public ConfigStore(long delayMillis) {
+    this.delay = delayMillis;
+    this.writer =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "MultiBridge Config Writer");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Mark config as needing to be saved to file */
+  public void save(Path file, Configuration config) {
+    if (dirty.put(file, new Pending(config)) == null) {
+      schedule(file);
+    }
+  }
+
+  private void schedule(Path file) {
+    try {
+      writer.schedule(() -> flush(file), delay, TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      // Shut down, write it now instead
+      flush(file);
+    }
+  }
+
+  /** Write out file now if it has unsaved changes. Call before reading it back from disk */
+  public synchronized void flush(Path file) {
+    Pending pending = dirty.get(file);
+    if (pending == null) {
+      return;
+    }
+
+    try {
+      StringWriter output = new StringWriter();
+      synchronized (pending.config) {
+        ConfigurationProvider.getProvider(YamlConfiguration.class).save(pending.config, output);
+      }
+      AtomicFiles.write(file, output.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Unable to save " + file + ": " + e.getMessage());
+
+      // Nothing to retry into if the folder has gone, such as a removed instance
+      if (!Files.isDirectory(file.getParent())) {
+        dirty.remove(file, pending);
+      } else if (!writer.isShutdown()) {
+        schedule(file);
+      }
+      return;
+    }
+
+    // Saved again while we were writing, so it needs another write
+    if (!dirty.remove(file, pending)) {
+      schedule(file);
+    }
+  }
+
+  /** Write out everything with unsaved changes */
+  public void flush() {
+    for (Path file : new ArrayList<>(dirty.keySet())) {
+      flush(file);
+    }
+  }
+
+  /** Write out everything outstanding and stop */
+  public void shutdown() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  /** A change waiting to be written. Each save makes a new one */
+  private static class Pending {
+    final Configuration config;
+
+    Pending(Configuration config) {
+      this.config = config;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package au.com.grieve.multibridge.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** SHA-1 helpers shared by the caches */
+public final class Hashes {
+
+  private Hashes() {}
+
+  /** Return a new SHA-1 digest */
+  public static MessageDigest newSha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Can't find SHA1 algorithm", e);
+    }
+  }
+
+  /** Return the SHA-1 of data as hex */
+  public static String sha1(byte[] data) {
+    return sha1(ByteBuffer.wrap(data));
+  }
+
+  /** Return the SHA-1 of the remaining bytes of data as hex, leaving data untouched */
+  public static String sha1(ByteBuffer data) {
+    MessageDigest sha1 = newSha1();
+    sha1.update(data.duplicate());
+    return toHex(sha1.digest());
+  }
+
+  /** Return bytes as lower case hex */
+  public static String toHex(byte[] bytes) {
+    StringBuilder output = new StringBuilder();
+    for (byte b : bytes) {
+      output.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+    }
+    return output.toString();
+  }
+}
@@ -0,0 +1,127 @@
+package au.com.grieve.multibridge.util;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A cached, layered view of Tags
+ *
+ * <p>Each layer is read from its source the first time it is needed and later layers override
+ * earlier ones. The merged view, as well as any typed lookups against it, is kept until one of the
+ * layers is invalidated.
+ */
+public class LayeredTags {
+  /** Layers in order of precedence, lowest first */
+  public enum Layer {
+    DEFAULTS,
+    GLOBAL,
+    INSTANCE,
+    BUILTIN
+  }
+
+  private final Map<Layer, Supplier<Map<String, String>>> sources = new EnumMap<>(Layer.class);
+  private final Map<Layer, Map<String, String>> layers = new EnumMap<>(Layer.class);
+  private volatile Snapshot snapshot;
+
+  /** Set the source of a layer */
+  public synchronized void setSource(Layer layer, Supplier<Map<String, String>> source) {
+    sources.put(layer, source);
+    invalidate(layer);
+  }
+
+  /** Drop a cached layer so it is read from its source on next use */
+  public synchronized void invalidate(Layer layer) {
+    layers.remove(layer);
+    snapshot = null;
+  }
+
+  /** Drop all cached layers */
+  public synchronized void invalidate() {
+    layers.clear();
+    snapshot = null;
+  }
+
+  /** Return the effective tags */
+  public Map<String, String> getTags() {
+    return getSnapshot().tags;
+  }
+
+  /** Return an effective tag or def if it is not set */
+  public String get(String key, String def) {
+    return getSnapshot().tags.getOrDefault(key, def);
+  }
+
+  /** Return an effective tag as an int or def if it is not set or not a number */
+  public int getInt(String key, int def) {
+    Snapshot current = getSnapshot();
+    return current
+        .ints
+        .computeIfAbsent(
+            key,
+            k -> {
+              String value = current.tags.get(k);
+              if (value == null) {
+                return Optional.empty();
+              }
+              try {
+                return Optional.of(Integer.parseInt(value));
+              } catch (NumberFormatException e) {
+                return Optional.empty();
+              }
+            })
+        .orElse(def);
+  }
+
+  /** Return an effective tag as a boolean or def if it is not set */
+  public boolean getBoolean(String key, boolean def) {
+    Snapshot current = getSnapshot();
+    return current
+        .booleans
+        .computeIfAbsent(
+            key,
+            k -> {
+              String value = current.tags.get(k);
+              return value == null ? Optional.empty() : Optional.of(Boolean.parseBoolean(value));
+            })
+        .orElse(def);
+  }
+
+  private Snapshot getSnapshot() {
+    Snapshot current = snapshot;
+    return current != null ? current : rebuild();
+  }
+
+  private synchronized Snapshot rebuild() {
+    if (snapshot != null) {
+      return snapshot;
+    }
+
+    Map<String, String> merged = new HashMap<>();
+    for (Layer layer : Layer.values()) {
+      Supplier<Map<String, String>> source = sources.get(layer);
+      if (source == null) {
+        continue;
+      }
+      merged.putAll(layers.computeIfAbsent(layer, l -> source.get()));
+    }
+
+    snapshot = new Snapshot(Collections.unmodifiableMap(merged));
+    return snapshot;
+  }
+
+  /** Merged tags and the typed lookups made against them */
+  private static class Snapshot {
+    final Map<String, String> tags;
+    final Map<String, Optional<Integer>> ints = new ConcurrentHashMap<>();
+    final Map<String, Optional<Boolean>> booleans = new ConcurrentHashMap<>();
+
+    Snapshot(Map<String, String> tags) {
+      this.tags = tags;
+    }
+  }
+}
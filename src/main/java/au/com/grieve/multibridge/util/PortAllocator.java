@@ -0,0 +1,131 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out ports from one or more ranges
+ *
+ * <p>Used ports are tracked in a BitSet indexed by position across all ranges. Allocation carries
+ * on from where the last one left off, skips ports that were released less than the quarantine ago
+ * (so sockets in TIME_WAIT can clear) and skips any port the OS will not let us bind.
+ */
+public class PortAllocator {
+  private final int[] ports;
+  private final BitSet used;
+  private final long[] releasedAt;
+  private final long quarantine;
+  private int cursor = 0;
+
+  /**
+   * @param ranges port ranges of the form "start-end", inclusive, or a single port
+   * @param quarantineSeconds how long a released port is left alone
+   * @throws IllegalArgumentException if a range is malformed or out of bounds
+   */
+  public PortAllocator(List<String> ranges, int quarantineSeconds) {
+    BitSet all = new BitSet(65536);
+    for (String range : ranges) {
+      String[] parts = range.trim().split("\\s*-\\s*", 2);
+      int start;
+      int end;
+      try {
+        start = Integer.parseInt(parts[0]);
+        end = parts.length > 1 ? Integer.parseInt(parts[1]) : start;
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid port range: " + range);
+      }
+      if (start < 1 || end > 65535 || start > end) {
+        throw new IllegalArgumentException("Invalid port range: " + range);
+      }
+      all.set(start, end + 1);
+    }
+
+    ports = all.stream().toArray();
+    used = new BitSet(ports.length);
+    releasedAt = new long[ports.length];
+    quarantine = TimeUnit.SECONDS.toNanos(quarantineSeconds);
+  }
+
+  /**
+   * Return a free port
+   *
+   * @throws IndexOutOfBoundsException if none are free
+   */
+  public synchronized int allocate() throws IndexOutOfBoundsException {
+    long now = System.nanoTime();
+
+    // Search from the cursor to the end, then wrap around
+    for (int pass = 0; pass < 2; pass++) {
+      int from = pass == 0 ? cursor : 0;
+      int to = pass == 0 ? ports.length : cursor;
+      for (int i = used.nextClearBit(from); i < to; i = used.nextClearBit(i + 1)) {
+        if (releasedAt[i] != 0 && now - releasedAt[i] < quarantine) {
+          continue;
+        }
+        if (!isBindable(ports[i])) {
+          continue;
+        }
+
+        used.set(i);
+        releasedAt[i] = 0;
+        cursor = i + 1 < ports.length ? i + 1 : 0;
+        return ports[i];
+      }
+    }
+
+    throw new IndexOutOfBoundsException(
+        "No free ports (" + used.cardinality() + "/" + ports.length + " in use)");
+  }
+
+  /** Release a port previously allocated */
+  public synchronized void release(int port) {
+    int index = indexOf(port);
+    if (index >= 0 && used.get(index)) {
+      used.clear(index);
+      releasedAt[index] = System.nanoTime();
+    }
+  }
+
+  private int indexOf(int port) {
+    int low = 0;
+    int high = ports.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (ports[mid] < port) {
+        low = mid + 1;
+      } else if (ports[mid] > port) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** Return true if nothing else is listening on port */
+  private static boolean isBindable(int port) {
+    try (ServerSocket socket = new ServerSocket(port)) {
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Return number of ports in use */
+  public synchronized int getUsed() {
+    return used.cardinality();
+  }
+
+  /** Return number of ports available in all ranges */
+  public int getTotal() {
+    return ports.length;
+  }
+
+  /** Return the fraction of ports in use */
+  public synchronized double getUtilisation() {
+    return ports.length == 0 ? 1 : (double) used.cardinality() / ports.length;
+  }
+}
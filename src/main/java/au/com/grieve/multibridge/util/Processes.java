@@ -0,0 +1,61 @@
+package au.com.grieve.multibridge.util;
+
+import java.lang.reflect.Method;
+import java.util.stream.Stream;
+
+/** Process helpers that make use of newer Java runtimes when available */
+public class Processes {
+  private static final Method TO_HANDLE;
+  private static final Method DESCENDANTS;
+  private static final Method DESTROY;
+  private static final Method DESTROY_FORCIBLY;
+
+  static {
+    Method toHandle = null;
+    Method descendants = null;
+    Method destroy = null;
+    Method destroyForcibly = null;
+    try {
+      Class<?> handle = Class.forName("java.lang.ProcessHandle");
+      toHandle = Process.class.getMethod("toHandle");
+      descendants = handle.getMethod("descendants");
+      destroy = handle.getMethod("destroy");
+      destroyForcibly = handle.getMethod("destroyForcibly");
+    } catch (ReflectiveOperationException ignored) {
+      // Java 8 has no ProcessHandle
+    }
+    TO_HANDLE = toHandle;
+    DESCENDANTS = descendants;
+    DESTROY = destroy;
+    DESTROY_FORCIBLY = destroyForcibly;
+  }
+
+  /**
+   * Destroy process along with any processes it started, such as a server launched from a shell
+   * script. Descendants can only be found on Java 9 or later, otherwise only process itself is
+   * destroyed.
+   */
+  public static void destroy(Process process, boolean force) {
+    if (TO_HANDLE != null) {
+      try {
+        Object handle = TO_HANDLE.invoke(process);
+        Method method = force ? DESTROY_FORCIBLY : DESTROY;
+        ((Stream<?>) DESCENDANTS.invoke(handle))
+            .forEach(
+                child -> {
+                  try {
+                    method.invoke(child);
+                  } catch (ReflectiveOperationException ignored) {
+                  }
+                });
+      } catch (ReflectiveOperationException ignored) {
+      }
+    }
+
+    if (force) {
+      process.destroyForcibly();
+    } else {
+      process.destroy();
+    }
+  }
+}
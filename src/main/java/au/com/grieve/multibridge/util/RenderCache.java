@@ -0,0 +1,128 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import net.md_5.bungee.config.Configuration;
+import net.md_5.bungee.config.ConfigurationProvider;
+import net.md_5.bungee.config.YamlConfiguration;
+
+/**
+ * Remembers what each rendered file was built from
+ *
+ * <p>For every output the hash of its template source and the value of each tag it referenced is
+ * recorded, along with the size and modification time of the output itself. An output only needs
+ * rendering again when one of those changes.
+ *
+ * <p>Safe for use from multiple threads.
+ */
+public class RenderCache {
+  private final Path baseFolder;
+  private final Path cacheFile;
+  private Configuration cache;
+  private boolean modified = false;
+
+  public RenderCache(Path baseFolder, Path cacheFile) {
+    this.baseFolder = baseFolder;
+    this.cacheFile = cacheFile;
+
+    load();
+  }
+
+  private synchronized void load() {
+    try {
+      cache = ConfigurationProvider.getProvider(YamlConfiguration.class).load(cacheFile.toFile());
+    } catch (IOException e) {
+      cache = new Configuration();
+    }
+    modified = false;
+  }
+
+  /** Save the cache if it has changed */
+  public synchronized void save() {
+    if (!modified) {
+      return;
+    }
+
+    try {
+      ConfigurationProvider.getProvider(YamlConfiguration.class).save(cache, cacheFile.toFile());
+      modified = false;
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Forget everything recorded */
+  public synchronized void clear() {
+    cache = new Configuration();
+    modified = true;
+  }
+
+  /** Return the config section for an output. Paths may contain dots so we key on a hash */
+  private String key(Path output) {
+    String name = baseFolder.relativize(output).toString();
+    return "files." + Hashes.sha1(name.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Return true if output exists and was last rendered from a source with the same hash, using the
+   * same tag values as resolver now provides
+   */
+  public synchronized boolean isCurrent(
+      Path output, String sourceHash, CompiledTemplate.Resolver resolver) {
+    String key = key(output);
+    if (!sourceHash.equals(cache.getString(key + ".source", null))) {
+      return false;
+    }
+
+    // Output must be untouched since we wrote it
+    try {
+      if (Files.size(output) != cache.getLong(key + ".size", -1)
+          || Files.getLastModifiedTime(output).toMillis() != cache.getLong(key + ".modified", -1)) {
+        return false;
+      }
+    } catch (IOException e) {
+      return false;
+    }
+
+    Configuration tags = cache.getSection(key + ".tags");
+    for (String tag : tags.getKeys()) {
+      try {
+        if (!resolver.resolve(tag).equals(tags.getString(tag))) {
+          return false;
+        }
+      } catch (IOException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Record what output was rendered from */
+  public synchronized void put(Path output, String sourceHash, Map<String, String> tags)
+      throws IOException {
+    String key = key(output);
+    cache.set(key, null);
+    cache.set(key + ".source", sourceHash);
+    cache.set(key + ".size", Files.size(output));
+    cache.set(key + ".modified", Files.getLastModifiedTime(output).toMillis());
+    for (Map.Entry<String, String> e : tags.entrySet()) {
+      cache.set(key + ".tags." + e.getKey(), e.getValue());
+    }
+    modified = true;
+  }
+
+  /** Return every tag referenced by any recorded output */
+  public synchronized Set<String> getTags() {
+    Set<String> result = new HashSet<>();
+    Configuration files = cache.getSection("files");
+    for (String file : files.getKeys()) {
+      result.addAll(files.getSection(file + ".tags").getKeys());
+    }
+    return result;
+  }
+}
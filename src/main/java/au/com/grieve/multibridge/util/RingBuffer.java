@@ -0,0 +1,61 @@
+package au.com.grieve.multibridge.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer
+ *
+ * <p>Producers claim a slot by advancing the tail and then publish into it. The consumer only
+ * takes a slot once it has been published, so a slow producer holds up later items but never
+ * exposes a half written one.
+ */
+public class RingBuffer<T> {
+  private final AtomicReferenceArray<T> slots;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head = 0;
+
+  /** Create a buffer holding at least capacity items */
+  public RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    slots = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  /**
+   * Add an item. May be called from any thread
+   *
+   * @return false if the buffer is full
+   */
+  public boolean offer(T item) {
+    while (true) {
+      long t = tail.get();
+      if (t - head >= slots.length()) {
+        return false;
+      }
+      if (tail.compareAndSet(t, t + 1)) {
+        slots.lazySet((int) (t & mask), item);
+        return true;
+      }
+    }
+  }
+
+  /** Return true if there is nothing to take. Only the consumer may call this */
+  public boolean isEmpty() {
+    return slots.get((int) (head & mask)) == null;
+  }
+
+  /** Take the next item or return null if there is none. Only one thread may call this */
+  public T poll() {
+    long h = head;
+    int index = (int) (h & mask);
+    T item = slots.get(index);
+    if (item == null) {
+      return null;
+    }
+    slots.lazySet(index, null);
+    head = h + 1;
+    return item;
+  }
+}
@@ -1,19 +1,27 @@
 package au.com.grieve.multibridge.util;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
-/** A simple Template Class */
+/**
+ * A simple Template Class
+ *
+ * <p>Placeholder values may themselves contain placeholders. Each value is expanded once, the first
+ * time it is needed, and remembered for later use. Not thread-safe.
+ */
 public class SimpleTemplate {
 
   private Map<String, String> placeHolders;
+  private final Map<String, String> expanded = new HashMap<>();
+  private final Set<String> expanding = new HashSet<>();
+  private final Map<String, CompiledTemplate> compiled = new HashMap<>();
+  private final StringBuilder buffer = new StringBuilder();
+  private StreamingRenderer renderer;
 
   public SimpleTemplate(Map<String, String> placeHolders) {
     this.placeHolders = placeHolders;
@@ -24,47 +32,86 @@ public class SimpleTemplate {
    * references a variable not provided in placeHolders
    */
   public String replace(String input) throws IOException {
-    Pattern p = Pattern.compile("\\{\\{([a-zA-Z0-9_]+)}}");
+    return render(compiled.computeIfAbsent(input, CompiledTemplate::compile));
+  }
 
-    for (int maxTries = 20; maxTries > 0; maxTries--) {
-      Matcher m = p.matcher(input);
-      StringBuffer sb = new StringBuffer(input.length());
+  /** Render a compiled template */
+  public String render(CompiledTemplate template) throws IOException {
+    buffer.setLength(0);
+    template.render(this::resolve, buffer);
+    return buffer.toString();
+  }
 
-      boolean found = false;
-      while (m.find()) {
-        String tag = m.group(1).toUpperCase();
-        if (!placeHolders.containsKey(tag)) {
-          throw new MissingVariable(tag);
-        }
-        found = true;
-        m.appendReplacement(sb, Matcher.quoteReplacement(placeHolders.get(tag)));
-      }
+  /** Return the fully expanded value of a placeholder */
+  public String resolve(String tag) throws IOException {
+    String value = expanded.get(tag);
+    if (value != null) {
+      return value;
+    }
 
-      if (!found) {
-        return input;
-      }
+    if (!placeHolders.containsKey(tag)) {
+      throw new MissingVariable(tag);
+    }
 
-      m.appendTail(sb);
-      input = sb.toString();
+    if (!expanding.add(tag)) {
+      throw new RuntimeException("Too many recursions in Placeholder: " + tag);
+    }
+
+    try {
+      value = placeHolders.get(tag);
+      CompiledTemplate template = CompiledTemplate.compile(value);
+      if (!template.isLiteral()) {
+        StringBuilder sb = new StringBuilder(value.length());
+        template.render(this::resolve, sb);
+        value = sb.toString();
+      }
+    } finally {
+      expanding.remove(tag);
     }
-    throw new RuntimeException("Too many recursions in Placeholder");
+
+    expanded.put(tag, value);
+    return value;
   }
 
   /** Given an inFile and outFile, replace all placeholders in inFile and save to Outfile */
   public void replace(Path inFile, Path outFile) throws IOException {
+    replace(inFile, outFile, null);
+  }
+
+  /**
+   * Given an inFile and outFile, replace all placeholders in inFile and save to Outfile
+   *
+   * <p>The file is processed as bytes so its encoding and line endings are preserved. If a cache is
+   * provided outFile is left alone when neither inFile nor the values of the placeholders it uses
+   * have changed since it was last rendered.
+   *
+   * @return true if outFile was written
+   */
+  public boolean replace(Path inFile, Path outFile, RenderCache cache) throws IOException {
     try {
-      BufferedWriter writer = new BufferedWriter(new FileWriter(outFile.toFile()));
-      BufferedReader reader = new BufferedReader(new FileReader(inFile.toFile()));
+      ByteBuffer source = StreamingRenderer.read(inFile);
+      String sourceHash = cache != null ? Hashes.sha1(source) : null;
+
+      if (cache != null && cache.isCurrent(outFile, sourceHash, this::resolve)) {
+        return false;
+      }
 
-      for (String line; ((line = reader.readLine()) != null); ) {
-        writer.write(replace(line));
-        writer.newLine();
+      if (renderer == null) {
+        renderer = new StreamingRenderer();
       }
+      Set<String> variables = renderer.render(source, outFile, this::resolve);
 
-      writer.close();
-      reader.close();
+      if (cache != null) {
+        Map<String, String> used = new HashMap<>();
+        for (String variable : variables) {
+          used.put(variable, resolve(variable));
+        }
+        cache.put(outFile, sourceHash, used);
+      }
+      return true;
     } catch (MissingVariable e) {
       System.err.println(inFile + ": " + e.getMessage());
+      return false;
     } catch (IOException e) {
       throw new IOException(inFile + ": " + e.getMessage());
     }
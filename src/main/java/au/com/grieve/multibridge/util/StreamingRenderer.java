@@ -0,0 +1,166 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Renders a template file to another file without decoding it
+ *
+ * <p>The source is scanned for {{ markers as raw bytes. Everything between placeholders is copied
+ * to the output untouched, so the result is byte-identical to the source apart from the substituted
+ * values, which are written as UTF-8. Large sources are memory mapped rather than read.
+ */
+class StreamingRenderer {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long MAP_THRESHOLD = 1024 * 1024;
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  /** Return the contents of file, memory mapped if it is large */
+  static ByteBuffer read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size >= MAP_THRESHOLD) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+    }
+    return ByteBuffer.wrap(Files.readAllBytes(file));
+  }
+
+  /**
+   * Render source into target, looking up each placeholder with resolver. The output is written to
+   * a temporary file and moved into place, so target is left alone if anything fails.
+   *
+   * @return the placeholders that were used
+   */
+  Set<String> render(ByteBuffer source, Path target, CompiledTemplate.Resolver resolver)
+      throws IOException {
+    Set<String> used = new LinkedHashSet<>();
+    Path temp = AtomicFiles.tempFor(target);
+
+    try (FileChannel output =
+        FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      ((Buffer) buffer).clear();
+
+      int limit = source.limit();
+      int literalStart = 0;
+      int i = indexOfMarker(source, 0, limit);
+      while (i >= 0) {
+        int end = scanVariable(source, i + 2, limit);
+        if (end < 0) {
+          i = indexOfMarker(source, i + 1, limit);
+          continue;
+        }
+
+        String variable = ascii(source, i + 2, end).toUpperCase();
+        String value = resolver.resolve(variable);
+        used.add(variable);
+
+        writeRange(source, literalStart, i, output);
+        writeRange(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)), output);
+
+        literalStart = end + 2;
+        i = indexOfMarker(source, literalStart, limit);
+      }
+      writeRange(source, literalStart, limit, output);
+      flush(output);
+    } catch (Throwable e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+
+    AtomicFiles.move(temp, target);
+    return used;
+  }
+
+  /**
+   * Return the index of the next {{ at or after from, or -1
+   *
+   * <p>If the byte after the current one is not a brace then neither it nor the current byte can
+   * start a marker, so we step two bytes at a time through plain text.
+   */
+  private static int indexOfMarker(ByteBuffer source, int from, int limit) {
+    int i = from;
+    while (i + 1 < limit) {
+      if (source.get(i + 1) != '{') {
+        i += 2;
+        continue;
+      }
+      if (source.get(i) == '{') {
+        return i;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  /**
+   * Return the end of a variable name starting at start if it is followed by }}, otherwise -1
+   */
+  private static int scanVariable(ByteBuffer source, int start, int limit) {
+    int i = start;
+    while (i < limit && CompiledTemplate.isNameChar(source.get(i))) {
+      i++;
+    }
+
+    if (i == start || i + 1 >= limit || source.get(i) != '}' || source.get(i + 1) != '}') {
+      return -1;
+    }
+    return i;
+  }
+
+  private static String ascii(ByteBuffer source, int start, int end) {
+    byte[] name = new byte[end - start];
+    for (int i = start; i < end; i++) {
+      name[i - start] = source.get(i);
+    }
+    return new String(name, StandardCharsets.US_ASCII);
+  }
+
+  /** Copy bytes from start to end of source to output */
+  private void writeRange(ByteBuffer source, int start, int end, FileChannel output)
+      throws IOException {
+    if (start >= end) {
+      return;
+    }
+
+    ByteBuffer range = source.duplicate();
+    ((Buffer) range).limit(end);
+    ((Buffer) range).position(start);
+    writeRange(range, output);
+  }
+
+  /** Copy the remaining bytes of range to output, bypassing our buffer if they won't fit */
+  private void writeRange(ByteBuffer range, FileChannel output) throws IOException {
+    if (range.remaining() <= buffer.remaining()) {
+      buffer.put(range);
+      return;
+    }
+
+    flush(output);
+    if (range.remaining() <= buffer.remaining()) {
+      buffer.put(range);
+      return;
+    }
+
+    while (range.hasRemaining()) {
+      output.write(range);
+    }
+  }
+
+  private void flush(FileChannel output) throws IOException {
+    ((Buffer) buffer).flip();
+    while (buffer.hasRemaining()) {
+      output.write(buffer);
+    }
+    ((Buffer) buffer).clear();
+  }
+}
@@ -0,0 +1,165 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Clones a template folder into a new instance folder
+ *
+ * <p>Files matching a read-only pattern are hardlinked rather than copied, unless they also match a
+ * mutable pattern. With the REFLINK strategy everything else is first tried as a copy-on-write
+ * clone, which only works on filesystems such as btrfs and XFS. Whatever is left is copied in
+ * parallel by a {@link TreeCopier}. Folders are always created first.
+ */
+public class TemplateCloner {
+  public enum Strategy {
+    COPY,
+    LINK,
+    REFLINK
+  }
+
+  private static final int REFLINK_BATCH = 200;
+
+  private final Strategy strategy;
+  private final List<PathMatcher> readOnly;
+  private final List<PathMatcher> mutable;
+  private final TreeCopier copier;
+
+  public TemplateCloner(
+      Strategy strategy, List<String> readOnly, List<String> mutable, TreeCopier copier) {
+    this.strategy = strategy;
+    this.copier = copier;
+    this.readOnly = toMatchers(readOnly);
+    this.mutable = toMatchers(mutable);
+  }
+
+  private static List<PathMatcher> toMatchers(List<String> patterns) {
+    return patterns.stream()
+        .map(p -> FileSystems.getDefault().getPathMatcher("glob:" + p))
+        .collect(Collectors.toList());
+  }
+
+  private static boolean matches(List<PathMatcher> matchers, Path path) {
+    for (PathMatcher matcher : matchers) {
+      if (matcher.matches(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Clone source folder to target folder
+   *
+   * @param listener receives copy progress. May be null
+   * @param cancelled checked as files are cloned. Once true the clone throws CancellationException
+   */
+  public void clone(
+      Path source, Path target, Consumer<TreeCopier.Progress> listener, BooleanSupplier cancelled)
+      throws IOException {
+    List<Path> copies = new ArrayList<>();
+
+    try (Stream<Path> paths = Files.walk(source)) {
+      for (Path p : (Iterable<Path>) paths::iterator) {
+        if (cancelled.getAsBoolean()) {
+          throw new CancellationException("Cancelled");
+        }
+
+        Path relative = source.relativize(p);
+        Path destination = target.resolve(relative);
+
+        if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+          Files.createDirectories(destination);
+        } else if (Files.isSymbolicLink(p)) {
+          Files.copy(p, destination, LinkOption.NOFOLLOW_LINKS);
+        } else if (strategy != Strategy.COPY
+            && matches(readOnly, relative)
+            && !matches(mutable, relative)) {
+          try {
+            Files.createLink(destination, p);
+          } catch (IOException | UnsupportedOperationException e) {
+            copies.add(relative);
+          }
+        } else {
+          copies.add(relative);
+        }
+      }
+    }
+
+    if (strategy == Strategy.REFLINK) {
+      copies = reflink(source, target, copies);
+    }
+
+    copier.copy(source, target, copies, listener, cancelled);
+  }
+
+  /**
+   * Try to clone files with cp --reflink, one batch per folder. Stops at the first failure as the
+   * filesystem most likely does not support it.
+   *
+   * @return files that were not cloned
+   */
+  private List<Path> reflink(Path source, Path target, List<Path> files) {
+    if (System.getProperty("os.name").toLowerCase().startsWith("windows")) {
+      return files;
+    }
+
+    Map<Path, List<Path>> byFolder = new LinkedHashMap<>();
+    for (Path relative : files) {
+      Path parent = relative.getParent();
+      byFolder
+          .computeIfAbsent(
+              parent == null ? relative.getFileSystem().getPath("") : parent,
+              k -> new ArrayList<>())
+          .add(relative);
+    }
+
+    Set<Path> remaining = new LinkedHashSet<>(files);
+    for (Map.Entry<Path, List<Path>> entry : byFolder.entrySet()) {
+      List<Path> folderFiles = entry.getValue();
+      for (int i = 0; i < folderFiles.size(); i += REFLINK_BATCH) {
+        List<Path> batch = folderFiles.subList(i, Math.min(folderFiles.size(), i + REFLINK_BATCH));
+
+        List<String> command = new ArrayList<>();
+        command.add("cp");
+        command.add("--reflink=always");
+        command.add("--preserve=mode,timestamps");
+        for (Path relative : batch) {
+          command.add(source.resolve(relative).toString());
+        }
+        command.add(target.resolve(entry.getKey()).toString());
+
+        try {
+          Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+          process.getInputStream().close();
+          if (process.waitFor() != 0) {
+            return new ArrayList<>(remaining);
+          }
+        } catch (IOException e) {
+          return new ArrayList<>(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return new ArrayList<>(remaining);
+        }
+
+        remaining.removeAll(batch);
+      }
+    }
+    return new ArrayList<>(remaining);
+  }
+}
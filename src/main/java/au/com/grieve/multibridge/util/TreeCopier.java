@@ -0,0 +1,211 @@
+package au.com.grieve.multibridge.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Copies files between two folders using a shared, bounded pool of workers
+ *
+ * <p>Folders must already exist in the target. Large files are copied with {@link
+ * FileChannel#transferTo} so the kernel can move the data directly. If any copy fails the rest are
+ * skipped and the call waits for every worker to finish before reporting the failure, so the
+ * caller can safely remove the target.
+ */
+public class TreeCopier {
+  private static final long TRANSFER_THRESHOLD = 1024 * 1024;
+  private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  private final ExecutorService executor;
+
+  public TreeCopier(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Copy files, given relative to source, into target
+   *
+   * @param listener receives progress at most once a second and once when finished. May be null
+   * @param cancelled checked before each file. Once true the rest are skipped and the copy throws
+   *     CancellationException
+   */
+  public void copy(
+      Path source,
+      Path target,
+      List<Path> files,
+      Consumer<Progress> listener,
+      BooleanSupplier cancelled)
+      throws IOException {
+    long totalBytes = 0;
+    for (Path relative : files) {
+      totalBytes += Files.size(source.resolve(relative));
+    }
+
+    Progress progress = new Progress(files.size(), totalBytes);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    CountDownLatch done = new CountDownLatch(files.size());
+    for (int i = 0; i < files.size(); i++) {
+      Path relative = files.get(i);
+      try {
+        executor.execute(
+            () -> {
+              try {
+                if (cancelled.getAsBoolean()) {
+                  failure.compareAndSet(null, new CancellationException("Cancelled"));
+                }
+
+                // Once something has failed the rest are skipped
+                if (failure.get() == null) {
+                  long size = copyFile(source.resolve(relative), target.resolve(relative));
+                  progress.add(size);
+                  if (listener != null && progress.shouldReport()) {
+                    listener.accept(progress);
+                  }
+                }
+              } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+              } finally {
+                done.countDown();
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        failure.compareAndSet(null, e);
+        for (int j = i; j < files.size(); j++) {
+          done.countDown();
+        }
+        break;
+      }
+    }
+
+    // Every worker must be finished before returning so the caller can remove the target
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+        failure.compareAndSet(null, new IOException("Interrupted while copying"));
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    Throwable error = failure.get();
+    if (error instanceof CancellationException) {
+      throw (CancellationException) error;
+    }
+    if (error != null) {
+      throw error instanceof IOException ? (IOException) error : new IOException(error);
+    }
+
+    if (listener != null) {
+      listener.accept(progress);
+    }
+  }
+
+  /**
+   * Copy a single file, returning its size
+   */
+  private static long copyFile(Path source, Path target) throws IOException {
+    long size = Files.size(source);
+    if (size < TRANSFER_THRESHOLD) {
+      Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+      return size;
+    }
+
+    try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+        FileChannel output =
+            FileChannel.open(
+                target,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+      long position = 0;
+      while (position < size) {
+        position += input.transferTo(position, size - position, output);
+      }
+    }
+
+    try {
+      Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+    } catch (UnsupportedOperationException ignored) {
+    }
+    Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    return size;
+  }
+
+  /** Progress of a copy */
+  public static class Progress {
+    private final long totalFiles;
+    private final long totalBytes;
+    private final long startTime = System.nanoTime();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong(startTime);
+
+    Progress(long totalFiles, long totalBytes) {
+      this.totalFiles = totalFiles;
+      this.totalBytes = totalBytes;
+    }
+
+    private void add(long size) {
+      files.incrementAndGet();
+      bytes.addAndGet(size);
+    }
+
+    /** Return true for only one caller each interval */
+    private boolean shouldReport() {
+      long now = System.nanoTime();
+      long last = lastReport.get();
+      return now - last >= REPORT_INTERVAL && lastReport.compareAndSet(last, now);
+    }
+
+    public long getFiles() {
+      return files.get();
+    }
+
+    public long getTotalFiles() {
+      return totalFiles;
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    public long getTotalBytes() {
+      return totalBytes;
+    }
+
+    /** Return average bytes copied per second so far */
+    public long getBytesPerSecond() {
+      long elapsed = Math.max(1, System.nanoTime() - startTime);
+      return (long) (bytes.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d/%d files, %d/%d MB, %.1f MB/s",
+          getFiles(),
+          getTotalFiles(),
+          getBytes() / (1024 * 1024),
+          getTotalBytes() / (1024 * 1024),
+          getBytesPerSecond() / (1024.0 * 1024.0));
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package au.com.grieve.multibridge.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * Matches console output against a set of triggers
+ *
+ * <p>Each trigger has a match regex and a list of commands to send when it matches, where $n is
+ * replaced with capture group n. Where a regex has a literal that every match must contain, that
+ * literal is looked for first and the regex is only run against lines containing it. All literals
+ * are searched for together in one pass. Not thread-safe.
+ */
+public class TriggerMatcher {
+  private final List<Trigger> unfiltered = new ArrayList<>();
+  private final List<Trigger> filtered = new ArrayList<>();
+  private final AhoCorasick literals;
+
+  /** Compile triggers from a triggers section */
+  public TriggerMatcher(Configuration section) {
+    List<String> required = new ArrayList<>();
+    for (String key : section.getKeys()) {
+      Configuration trigger = section.getSection(key);
+      String match = trigger.getString("match", null);
+      if (match == null) {
+        continue;
+      }
+
+      Trigger t = new Trigger(Pattern.compile(match), trigger.getStringList("commands"));
+
+      String literal = requiredLiteral(match);
+      if (literal == null) {
+        unfiltered.add(t);
+      } else {
+        filtered.add(t);
+        required.add(literal);
+      }
+    }
+    literals = new AhoCorasick(required);
+  }
+
+  /** Call handler for every match of every trigger in line */
+  public void match(String line, MatchHandler handler) {
+    for (Trigger trigger : unfiltered) {
+      trigger.match(line, handler);
+    }
+
+    if (filtered.isEmpty()) {
+      return;
+    }
+
+    BitSet candidates = literals.search(line);
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+      filtered.get(i).match(line, handler);
+    }
+  }
+
+  /**
+   * Return the longest run of plain characters that every match of regex must contain, or null
+   *
+   * <p>Only the top level of the regex is considered. Groups, classes, escapes other than escaped
+   * punctuation, and anything made optional by a quantifier break a run. Regexes with a top level
+   * alternation or inline flags, or anything not understood, have no required literal.
+   */
+  static String requiredLiteral(String regex) {
+    if (regex.contains("(?")) {
+      return null;
+    }
+
+    String best = "";
+    StringBuilder run = new StringBuilder();
+    int depth = 0;
+    int classDepth = 0;
+
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      Character literal = null;
+
+      if (c == '\\') {
+        if (i + 1 >= regex.length()) {
+          return null;
+        }
+        char escaped = regex.charAt(i + 1);
+        if (Character.isLetterOrDigit(escaped)) {
+          // Letter escapes and back references, along with any argument, match no fixed text
+          i = skipEscape(regex, i + 1);
+          if (i < 0) {
+            return null;
+          }
+        } else {
+          i++;
+          if (depth == 0 && classDepth == 0) {
+            literal = escaped;
+          }
+        }
+      } else if (classDepth > 0) {
+        if (c == '[') {
+          classDepth++;
+        } else if (c == ']') {
+          classDepth--;
+        }
+      } else if (c == '[') {
+        // A ] straight after [ or [^ is a literal in some flavours, so leave it alone
+        int first = i + 1 < regex.length() && regex.charAt(i + 1) == '^' ? i + 2 : i + 1;
+        if (first >= regex.length() || regex.charAt(first) == ']') {
+          return null;
+        }
+        classDepth++;
+      } else if (c == '{') {
+        // Quantifier. Whatever it applies to has already been made optional
+        i = regex.indexOf('}', i);
+        if (i < 0) {
+          return null;
+        }
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return null;
+      } else if (depth == 0 && ".^$*+?}".indexOf(c) < 0) {
+        literal = c;
+      }
+
+      if (literal == null) {
+        best = longest(best, run);
+        run.setLength(0);
+        continue;
+      }
+
+      // A quantifier after this character decides whether it is required
+      char quantifier = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+      if (quantifier == '?' || quantifier == '*' || quantifier == '{') {
+        best = longest(best, run);
+        run.setLength(0);
+      } else if (quantifier == '+') {
+        run.append(literal);
+        best = longest(best, run);
+        run.setLength(0);
+      } else {
+        run.append(literal);
+      }
+    }
+    if (classDepth != 0) {
+      return null;
+    }
+    best = longest(best, run);
+
+    return best.isEmpty() ? null : best;
+  }
+
+  /**
+   * Return the index of the last character of the escape whose letter or digit is at i, or -1 if
+   * it isn't understood
+   */
+  private static int skipEscape(String regex, int i) {
+    char c = regex.charAt(i);
+    switch (c) {
+      case 'p':
+      case 'P':
+      case 'N':
+      case 'x':
+        if (i + 1 < regex.length() && regex.charAt(i + 1) == '{') {
+          return regex.indexOf('}', i);
+        }
+        return fixedWidth(regex, i, c == 'x' ? 2 : 1);
+      case 'u':
+        return fixedWidth(regex, i, 4);
+      case 'c':
+        return fixedWidth(regex, i, 1);
+      case 'k':
+        return i + 1 < regex.length() && regex.charAt(i + 1) == '<' ? regex.indexOf('>', i) : -1;
+      case 'Q':
+        int end = regex.indexOf("\\E", i);
+        return end < 0 ? regex.length() - 1 : end + 1;
+      case '0':
+        int octal = i;
+        while (octal < i + 3 && octal + 1 < regex.length() && isOctal(regex.charAt(octal + 1))) {
+          octal++;
+        }
+        return octal;
+      default:
+        if (Character.isDigit(c)) {
+          // Back reference, which may be more than one digit
+          while (i + 1 < regex.length() && Character.isDigit(regex.charAt(i + 1))) {
+            i++;
+          }
+          return i;
+        }
+        return Character.isLetter(c) && c < 128 ? i : -1;
+    }
+  }
+
+  private static int fixedWidth(String regex, int i, int width) {
+    return i + width < regex.length() ? i + width : -1;
+  }
+
+  private static boolean isOctal(char c) {
+    return c >= '0' && c <= '7';
+  }
+
+  private static String longest(String best, CharSequence run) {
+    return run.length() > best.length() ? run.toString() : best;
+  }
+
+  /** Receives a match */
+  public interface MatchHandler {
+    void onMatch(Trigger trigger, Matcher matcher);
+  }
+
+  /** A compiled trigger */
+  public static class Trigger {
+    private final Pattern pattern;
+    private final Matcher matcher;
+    private final List<CommandTemplate> commands = new ArrayList<>();
+
+    Trigger(Pattern pattern, List<String> commands) {
+      this.pattern = pattern;
+      this.matcher = pattern.matcher("");
+      int groups = matcher.groupCount();
+      for (String command : commands) {
+        this.commands.add(new CommandTemplate(command, groups));
+      }
+    }
+
+    private void match(String line, MatchHandler handler) {
+      matcher.reset(line);
+      while (matcher.find()) {
+        handler.onMatch(this, matcher);
+      }
+    }
+
+    public Pattern getPattern() {
+      return pattern;
+    }
+
+    /** Return the commands with $n replaced by the groups of matcher */
+    public List<String> getCommands(Matcher matcher) {
+      List<String> result = new ArrayList<>(commands.size());
+      for (CommandTemplate command : commands) {
+        result.add(command.render(matcher));
+      }
+      return result;
+    }
+  }
+
+  /** A command split around its $n group references */
+  private static class CommandTemplate {
+    private final List<String> literals = new ArrayList<>();
+    private final List<Integer> groups = new ArrayList<>();
+
+    CommandTemplate(String command, int groupCount) {
+      StringBuilder literal = new StringBuilder();
+      int i = 0;
+      while (i < command.length()) {
+        char c = command.charAt(i);
+        int group = -1;
+        int end = i + 1;
+
+        // Take the longest number that is a valid group
+        if (c == '$') {
+          for (int j = i + 1; j < command.length() && Character.isDigit(command.charAt(j)); j++) {
+            int n = Integer.parseInt(command.substring(i + 1, j + 1));
+            if (n < 1 || n > groupCount) {
+              break;
+            }
+            group = n;
+            end = j + 1;
+          }
+        }
+
+        if (group < 0) {
+          literal.append(c);
+        } else {
+          literals.add(literal.toString());
+          literal.setLength(0);
+          groups.add(group);
+        }
+        i = end;
+      }
+      literals.add(literal.toString());
+    }
+
+    String render(Matcher matcher) {
+      if (groups.isEmpty()) {
+        return literals.get(0);
+      }
+
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < groups.size(); i++) {
+        sb.append(literals.get(i));
+        String value = matcher.group(groups.get(i));
+        sb.append(value != null ? value : "");
+      }
+      sb.append(literals.get(groups.size()));
+      return sb.toString();
+    }
+  }
+}
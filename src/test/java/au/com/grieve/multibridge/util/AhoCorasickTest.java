@@ -0,0 +1,47 @@
+package au.com.grieve.multibridge.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import org.junit.Test;
+
+/** Multi-literal search */
+public class AhoCorasickTest {
+
+  @Test
+  public void findsEveryLiteral() {
+    AhoCorasick search = new AhoCorasick(Arrays.asList("he", "she", "his", "hers"));
+    assertEquals(bits(0, 1, 3), search.search("ushers"));
+    assertEquals(bits(2), search.search("this"));
+    assertEquals(bits(), search.search("nothing"));
+  }
+
+  @Test
+  public void findsOverlappingAndNestedLiterals() {
+    AhoCorasick search = new AhoCorasick(Arrays.asList("aab", "ab", "b", "aaab"));
+    assertEquals(bits(0, 1, 2, 3), search.search("xaaabx"));
+    assertEquals(bits(1, 2), search.search("abab"));
+  }
+
+  @Test
+  public void reportsDuplicateLiterals() {
+    AhoCorasick search = new AhoCorasick(Arrays.asList("left", "left"));
+    assertEquals(bits(0, 1), search.search("Steve left the game"));
+    assertEquals(2, search.size());
+  }
+
+  @Test
+  public void handlesNoLiterals() {
+    assertEquals(bits(), new AhoCorasick(Collections.emptyList()).search("anything"));
+  }
+
+  private static BitSet bits(int... indexes) {
+    BitSet result = new BitSet();
+    for (int i : indexes) {
+      result.set(i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,126 @@
+package au.com.grieve.multibridge.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Extraction of well-formed and hostile archives. The archives are under resources/archives */
+public class ArchiveInstallerTest {
+  private Path folder;
+  private Path target;
+
+  @Before
+  public void setUp() throws IOException {
+    folder = Files.createTempDirectory("archive-test");
+    target = folder.resolve("target");
+    Files.createDirectory(target);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> walk = Files.walk(folder)) {
+      for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  @Test
+  public void extractsTar() throws IOException {
+    extract("good.tgz");
+    assertExtracted();
+    assertTrue(Files.isSameFile(target.resolve("d1/a.txt"), target.resolve("d1/c")));
+  }
+
+  @Test
+  public void extractsZip() throws IOException {
+    extract("good.zip");
+    assertExtracted();
+  }
+
+  @Test
+  public void rejectsTarPathOutsideTarget() {
+    assertRejected("slip.tgz");
+  }
+
+  @Test
+  public void rejectsZipPathOutsideTarget() {
+    assertRejected("slip.zip");
+  }
+
+  @Test
+  public void rejectsTarWritingThroughLinks() {
+    assertRejected("link-chain.tgz");
+  }
+
+  @Test
+  public void rejectsZipWritingThroughLinks() {
+    assertRejected("link-chain.zip");
+  }
+
+  @Test
+  public void rejectsTarLinkLeavingThroughAnotherLink() {
+    assertRejected("link-dotdot.tgz");
+  }
+
+  @Test
+  public void rejectsZipLinkLeavingThroughAnotherLink() {
+    assertRejected("link-dotdot.zip");
+  }
+
+  @Test
+  public void rejectsTarHardlinkOutsideTarget() {
+    assertRejected("hardlink-outside.tgz");
+  }
+
+  private void extract(String name) throws IOException {
+    Path archive = folder.resolve(name);
+    try (InputStream input = getClass().getResourceAsStream("/archives/" + name)) {
+      Files.copy(input, archive);
+    }
+    try {
+      new ArchiveInstaller(4).extract(archive, target);
+    } finally {
+      Files.delete(archive);
+    }
+  }
+
+  private void assertExtracted() throws IOException {
+    assertArrayEquals(
+        "hello".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(target.resolve("d1/a.txt")));
+    assertTrue(Files.isSymbolicLink(target.resolve("d1/b")));
+    assertEquals(Paths.get("a.txt"), Files.readSymbolicLink(target.resolve("d1/b")));
+  }
+
+  /** Extracting must fail without anything appearing next to the target */
+  private void assertRejected(String name) {
+    try {
+      extract(name);
+      fail("Extracted " + name);
+    } catch (IOException expected) {
+      // Rejected
+    }
+
+    try (Stream<Path> list = Files.list(folder)) {
+      assertEquals(1, list.count());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    assertFalse(Files.exists(folder.resolve("evil")));
+    assertFalse(Files.exists(folder.resolve("escape")));
+  }
+}
@@ -0,0 +1,68 @@
+package au.com.grieve.multibridge.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/** Required literals used to prefilter triggers */
+public class TriggerMatcherTest {
+
+  @Test
+  public void findsLongestRequiredRun() {
+    assertEquals(" joined the game", TriggerMatcher.requiredLiteral("(\\w+) joined the game"));
+    assertEquals("Done (", TriggerMatcher.requiredLiteral("Done \\("));
+    assertEquals("abc", TriggerMatcher.requiredLiteral("x?abc+d*"));
+  }
+
+  @Test
+  public void skipsQuantifierBounds() {
+    assertEquals(".", TriggerMatcher.requiredLiteral("[0-9]{1,3}\\.[0-9]{1,3}"));
+    assertEquals("y", TriggerMatcher.requiredLiteral("x{10}y"));
+    assertEquals("ab", TriggerMatcher.requiredLiteral("(ab){2}ab"));
+  }
+
+  @Test
+  public void treatsLetterEscapesAsBreaks() {
+    assertEquals(" left", TriggerMatcher.requiredLiteral("\\p{Alpha}+ left"));
+    assertEquals("BC", TriggerMatcher.requiredLiteral("\\x41BC"));
+    assertEquals("BC", TriggerMatcher.requiredLiteral("\\x{41}BC"));
+    assertEquals("z", TriggerMatcher.requiredLiteral("\\u0041z"));
+    assertEquals("z", TriggerMatcher.requiredLiteral("\\0101z"));
+    assertEquals("z", TriggerMatcher.requiredLiteral("\\cAz"));
+    assertEquals("yz", TriggerMatcher.requiredLiteral("\\Qabc\\Eyz"));
+    assertEquals("ab", TriggerMatcher.requiredLiteral("(a)\\1ab"));
+  }
+
+  @Test
+  public void handlesNestedClasses() {
+    assertEquals("xy", TriggerMatcher.requiredLiteral("[a-z&&[^b]]xy"));
+  }
+
+  @Test
+  public void givesUpWhenUnsure() {
+    assertNull(TriggerMatcher.requiredLiteral("a|b"));
+    assertNull(TriggerMatcher.requiredLiteral("(?i)hello"));
+    assertNull(TriggerMatcher.requiredLiteral("\\w+"));
+  }
+
+  @Test
+  public void literalIsInEveryMatch() {
+    String[][] samples = {
+      {"[0-9]{1,3}\\.[0-9]{1,3}", "at 127.0 now"},
+      {"x{10}", "xxxxxxxxxx"},
+      {"\\p{Alpha}+ left", "Steve left"},
+      {"\\x41BC", "ABC"},
+      {"\\Qa.b\\E", "a.b"},
+      {"(\\w+) joined the game", "Steve joined the game"},
+      {"a{0}bc", "bc"},
+    };
+    for (String[] sample : samples) {
+      assertTrue(sample[0], Pattern.compile(sample[0]).matcher(sample[1]).find());
+      String literal = TriggerMatcher.requiredLiteral(sample[0]);
+      assertTrue(sample[0] + " needs " + literal, literal == null || sample[1].contains(literal));
+    }
+  }
+}